@@ -0,0 +1,49 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import bench.BroadcastBenchmark;
+
+public class BroadcastFixture implements BroadcastBenchmark.Fixture {
+    private final LongAdder pushed = new LongAdder();
+    private CommandHandler commandHandler;
+    private IdleTimer idleTimer;
+    private Profile sender;
+    private int recipients;
+
+    @Override
+    public void open(int users) {
+        Mailbox mailbox = new InMemoryMailbox();
+        UserRegistry userRegistry = new UserRegistry(mailbox);
+        PushChannel counting = message -> {
+            pushed.increment();
+            return true;
+        };
+        for (int i = 0; i < users; i++) {
+            Profile profile = userRegistry.registerAndLogin("user" + i, "password", counting);
+            profile.finishDrain();
+        }
+        sender = userRegistry.get("user0");
+        recipients = users - 1;
+        idleTimer = new IdleTimer(TimeUnit.HOURS.toMillis(1));
+        // Lanes big enough for a whole broadcast, so nothing is turned away to the mailbox
+        int lanes = Runtime.getRuntime().availableProcessors();
+        MailboxDrainer mailboxDrainer = new MailboxDrainer(1);
+        commandHandler = new CommandHandler(userRegistry, new DeliveryExecutor(lanes, users, mailboxDrainer),
+                mailboxDrainer, idleTimer, new OutboundQueues(1024, OutboundQueues.OverflowPolicy.SPILL_TO_MAILBOX), 10);
+    }
+
+    @Override
+    public Object broadcast() {
+        long target = pushed.sum() + recipients;
+        Status status = commandHandler.broadcast(sender, "Are you coming to the meeting this afternoon?");
+        while (pushed.sum() < target) {
+            Thread.onSpinWait();
+        }
+        return status;
+    }
+
+    @Override
+    public void close() {
+        idleTimer.close();
+    }
+}
@@ -0,0 +1,62 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import bench.CompressionBenchmark;
+
+public class CompressionFixture implements CompressionBenchmark.Fixture {
+    private static final String[] WORDS = {"the", "meeting", "is", "moved", "to", "this", "afternoon", "and", "we",
+            "still", "need", "someone", "for", "notes", "can", "you", "bring", "slides", "from", "last", "week",
+            "I", "will", "be", "late", "because", "of", "traffic", "on", "bridge", "thanks", "everyone"};
+
+    private ByteBuffer payload;
+    private Deflater deflater;
+    private final Inflater inflater = new Inflater(true);
+    private ByteBuffer frame;
+
+    @Override
+    public void open(int messageLength, int level) {
+        // Everyday words in a fixed random order, so every run compresses the same text
+        Random random = new Random(42);
+        StringBuilder text = new StringBuilder();
+        while (text.length() < messageLength) {
+            text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+        }
+        text.setLength(messageLength);
+        payload = ByteBuffer.wrap(Message.broadcast(text.toString(), "hans").toString().getBytes(StandardCharsets.UTF_8));
+        deflater = level > 0 ? new Deflater(level, true) : null;
+        frame = encode();
+    }
+
+    @Override
+    public ByteBuffer encode() {
+        if (deflater != null) {
+            ByteBuffer compressed = FrameCompression.deflate(payload, deflater);
+            deflater.reset();
+            if (compressed != null) {
+                return MessageHandler.encodeFrame(compressed, MessageHandler.PUSH_FLAG | MessageHandler.COMPRESSED_FLAG);
+            }
+        }
+        return MessageHandler.encodeFrame(payload, MessageHandler.PUSH_FLAG);
+    }
+
+    @Override
+    public String decode() throws IOException {
+        ByteBuffer read = frame.duplicate();
+        int header = read.getInt();
+        ByteBuffer body = read.slice();
+        if ((header & MessageHandler.COMPRESSED_FLAG) != 0) {
+            body = FrameCompression.inflate(body, inflater);
+            inflater.reset();
+        }
+        return MessageHandler.decodePayload(body);
+    }
+
+    @Override
+    public int frameBytes() {
+        return frame.remaining();
+    }
+}
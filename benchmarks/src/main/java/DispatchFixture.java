@@ -0,0 +1,82 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import bench.DispatchBenchmark;
+
+public class DispatchFixture implements DispatchBenchmark.Fixture {
+    private static final int ONLINE_USERS = 16;
+    private static final long ONE_HOUR_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private String[] request;
+    private SocketChannel clientEnd;
+    private MessageHandler client;
+    private IdleTimer idleTimer;
+
+    @Override
+    public void open(String command) throws IOException {
+        request = switch (command) {
+            case "BLOCK" -> new String[] {"BLOCK", "nobody"};
+            case "MESSAGE" -> new String[] {"MESSAGE", "user0", "Are you coming to the meeting this afternoon?"};
+            default -> new String[] {command};
+        };
+
+        Mailbox mailbox = new InMemoryMailbox();
+        UserRegistry userRegistry = new UserRegistry(mailbox);
+        for (int i = 0; i < ONLINE_USERS; i++) {
+            Profile profile = userRegistry.registerAndLogin("user" + i, "password", message -> true);
+            profile.finishDrain();
+        }
+        idleTimer = new IdleTimer(ONE_HOUR_MILLIS);
+        MailboxDrainer mailboxDrainer = new MailboxDrainer(1);
+        CommandHandler commandHandler = new CommandHandler(userRegistry, new DeliveryExecutor(1, 1024, mailboxDrainer),
+                mailboxDrainer, idleTimer, new OutboundQueues(1024, OutboundQueues.OverflowPolicy.SPILL_TO_MAILBOX), 10);
+        HandshakeLimiter handshakeLimiter = new HandshakeLimiter(1, ONE_HOUR_MILLIS);
+
+        SocketChannel serverEnd;
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            clientEnd = SocketChannel.open(listener.getLocalAddress());
+            serverEnd = listener.accept();
+        }
+        Thread.ofPlatform().daemon().start(new ClientHandler(new MessageHandler(serverEnd),
+                handshakeLimiter.begin(serverEnd), commandHandler, Thread.ofPlatform().daemon()));
+
+        // Commands with arguments are several small frames; without this Nagle holds back all
+        // but the first until the server's delayed ack, and that is all the benchmark would see
+        clientEnd.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        client = new MessageHandler(clientEnd);
+        client.sendMessage("HELLO 1");
+        expect("USERNAME");
+        client.sendMessage("bench");
+        expect("NEW USER");
+        client.sendMessage("password");
+        expect("OK");
+    }
+
+    private void expect(String reply) throws IOException {
+        String received = client.receiveMessage();
+        if (!reply.equals(received)) {
+            throw new IOException("Expected " + reply + " but got " + received);
+        }
+    }
+
+    @Override
+    public String roundTrip() throws IOException {
+        for (String frame : request) {
+            client.sendMessage(frame);
+        }
+        return client.receiveMessage();
+    }
+
+    @Override
+    public void close() throws IOException {
+        client.sendMessage("LOGOUT");
+        clientEnd.close();
+        idleTimer.close();
+    }
+}
@@ -0,0 +1,44 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import bench.FramingBenchmark;
+
+public class FramingFixture implements FramingBenchmark.Fixture {
+    private String message;
+    private SocketChannel sendingEnd;
+    private SocketChannel receivingEnd;
+    private MessageHandler sender;
+    private MessageHandler receiver;
+
+    @Override
+    public void open(int messageLength) throws IOException {
+        message = "m".repeat(messageLength);
+        try (ServerSocketChannel listener = ServerSocketChannel.open()) {
+            listener.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+            sendingEnd = SocketChannel.open(listener.getLocalAddress());
+            receivingEnd = listener.accept();
+        }
+        sender = new MessageHandler(sendingEnd);
+        receiver = new MessageHandler(receivingEnd);
+    }
+
+    @Override
+    public String encodeDecode() throws IOException {
+        return MessageHandler.decodePayload(MessageHandler.decodeFrame(MessageHandler.encodeFrame(message, false)));
+    }
+
+    @Override
+    public String sendReceive() throws IOException {
+        sender.sendMessage(message);
+        return receiver.receiveMessage();
+    }
+
+    @Override
+    public void close() throws IOException {
+        sendingEnd.close();
+        receivingEnd.close();
+    }
+}
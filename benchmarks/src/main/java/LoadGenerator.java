@@ -0,0 +1,233 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Simulates many users against a running server. Each user is a ChatClient on its own virtual
+ * thread that logs in (creating its account the first time) and then sends commands back to back,
+ * picked at random by the configured mix, timing each one from sending it to its reply. Latencies
+ * go into one HdrHistogram per command, and the report gives throughput and p50 / p99 / p999.
+ *
+ * Every user waits for each reply before sending the next command, so the offered load is set
+ * by the number of users and -Dload.think.ms rather than a fixed rate.
+ *
+ * Usage: java -cp benchmarks/target/benchmarks.jar LoadGenerator server_port users seconds
+ *   -Dload.host=localhost
+ *   -Dload.mix=message:70,whoelse:20,block:9,broadcast:1
+ *   -Dload.warmup.seconds=5   latencies before this are not reported
+ *   -Dload.think.ms=0         pause between a reply and the next command
+ */
+public class LoadGenerator {
+    private static final String DEFAULT_MIX = "message:70,whoelse:20,block:9,broadcast:1";
+    private static final String PASSWORD = "load";
+    private static final long REPLY_TIMEOUT_SECONDS = 30;
+    // Latencies are recorded in microseconds to this many significant digits
+    private static final int SIGNIFICANT_DIGITS = 3;
+
+    enum Operation {
+        MESSAGE,
+        BROADCAST,
+        WHOELSE,
+        BLOCK
+    }
+
+    private final String host;
+    private final int port;
+    private final int users;
+    private final Operation[] mix;
+    private final long thinkMillis;
+    private final Map<Operation, Recorder> recorders = new EnumMap<>(Operation.class);
+    private final LongAdder pushes = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private volatile boolean running = true;
+
+    public LoadGenerator(String host, int port, int users, Operation[] mix, long thinkMillis) {
+        this.host = host;
+        this.port = port;
+        this.users = users;
+        this.mix = mix;
+        this.thinkMillis = thinkMillis;
+        for (Operation operation : Operation.values()) {
+            recorders.put(operation, new Recorder(SIGNIFICANT_DIGITS));
+        }
+    }
+
+    /**
+     * Turns "message:70,whoelse:20" into a table with one slot per weight point, so picking an
+     * operation is a single random index.
+     */
+    static Operation[] parseMix(String mix) {
+        List<Operation> table = new ArrayList<>();
+        for (String entry : mix.split(",")) {
+            String[] parts = entry.trim().split(":");
+            Operation operation = Operation.valueOf(parts[0].trim().toUpperCase(Locale.ROOT));
+            int weight = Integer.parseInt(parts[1].trim());
+            for (int i = 0; i < weight; i++) {
+                table.add(operation);
+            }
+        }
+        if (table.isEmpty()) {
+            throw new IllegalArgumentException("Empty operation mix: " + mix);
+        }
+        return table.toArray(new Operation[0]);
+    }
+
+    private static String username(int user) {
+        return "load" + user;
+    }
+
+    private ChatClient connect(int user) throws IOException {
+        ChatClient client = new ChatClient(host, port, message -> pushes.increment());
+        String response = client.login(username(user), PASSWORD);
+        if (!response.equals("OK")) {
+            client.close();
+            throw new IOException("Login of " + username(user) + " failed: " + response);
+        }
+        return client;
+    }
+
+    private void runUser(int user, ChatClient client) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        Set<String> blocked = new HashSet<>();
+        while (running) {
+            Operation operation = mix[random.nextInt(mix.length)];
+            String other = username(otherUser(user, random));
+            long start = System.nanoTime();
+            CompletableFuture<?> reply = switch (operation) {
+                case MESSAGE -> client.message(other, "load test message from " + username(user));
+                case BROADCAST -> client.broadcast("load test broadcast from " + username(user));
+                case WHOELSE -> client.whoelse();
+                // Toggles, so block lists stay small however long the run
+                case BLOCK -> blocked.add(other) ? client.block(other) : unblock(client, blocked, other);
+            };
+            try {
+                reply.get(REPLY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                recorders.get(operation).recordValue((System.nanoTime() - start) / 1000);
+            } catch (ExecutionException | TimeoutException e) {
+                errors.increment();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (thinkMillis > 0) {
+                try {
+                    Thread.sleep(thinkMillis);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static CompletableFuture<Status> unblock(ChatClient client, Set<String> blocked, String user) {
+        blocked.remove(user);
+        return client.unblock(user);
+    }
+
+    private int otherUser(int user, ThreadLocalRandom random) {
+        if (users == 1) {
+            return user;
+        }
+        int other = random.nextInt(users - 1);
+        return other >= user ? other + 1 : other;
+    }
+
+    public void run(long warmupSeconds, long seconds) throws IOException, InterruptedException {
+        List<ChatClient> clients = new ArrayList<>();
+        System.out.println("===== Logging in " + users + " users =====");
+        for (int user = 0; user < users; user++) {
+            clients.add(connect(user));
+        }
+
+        List<Thread> threads = new ArrayList<>();
+        for (int user = 0; user < users; user++) {
+            int id = user;
+            ChatClient client = clients.get(user);
+            threads.add(Thread.ofVirtual().name(username(user)).start(() -> runUser(id, client)));
+        }
+
+        System.out.println("===== Warming up for " + warmupSeconds + "s =====");
+        Thread.sleep(TimeUnit.SECONDS.toMillis(warmupSeconds));
+        recorders.values().forEach(Recorder::getIntervalHistogram);
+        long pushesBefore = pushes.sum();
+        long errorsBefore = errors.sum();
+        long start = System.nanoTime();
+
+        System.out.println("===== Measuring for " + seconds + "s =====");
+        Thread.sleep(TimeUnit.SECONDS.toMillis(seconds));
+        Map<Operation, Histogram> histograms = new EnumMap<>(Operation.class);
+        recorders.forEach((operation, recorder) -> histograms.put(operation, recorder.getIntervalHistogram()));
+        double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+        long pushesDuring = pushes.sum() - pushesBefore;
+        long errorsDuring = errors.sum() - errorsBefore;
+
+        running = false;
+        for (Thread thread : threads) {
+            thread.join(TimeUnit.SECONDS.toMillis(REPLY_TIMEOUT_SECONDS));
+        }
+        for (ChatClient client : clients) {
+            try {
+                client.logout();
+            } catch (IOException e) {
+                // Already gone
+            }
+        }
+        report(histograms, elapsedSeconds, pushesDuring, errorsDuring);
+    }
+
+    private void report(Map<Operation, Histogram> histograms, double elapsedSeconds, long pushesDuring, long errorsDuring) {
+        System.out.printf("===== %d users, %.1fs measured =====%n", users, elapsedSeconds);
+        System.out.printf("%-10s %10s %10s %10s %10s %10s %10s%n", "operation", "count", "ops/s", "p50 us", "p99 us", "p999 us", "max us");
+        Histogram all = new Histogram(SIGNIFICANT_DIGITS);
+        for (Map.Entry<Operation, Histogram> entry : histograms.entrySet()) {
+            Histogram histogram = entry.getValue();
+            if (histogram.getTotalCount() == 0) {
+                continue;
+            }
+            all.add(histogram);
+            printRow(entry.getKey().name().toLowerCase(Locale.ROOT), histogram, elapsedSeconds);
+        }
+        printRow("all", all, elapsedSeconds);
+        System.out.printf("pushes received: %d (%.0f/s), errors: %d%n", pushesDuring, pushesDuring / elapsedSeconds, errorsDuring);
+    }
+
+    private static void printRow(String name, Histogram histogram, double elapsedSeconds) {
+        System.out.printf("%-10s %10d %10.0f %10d %10d %10d %10d%n", name, histogram.getTotalCount(),
+                histogram.getTotalCount() / elapsedSeconds, histogram.getValueAtPercentile(50),
+                histogram.getValueAtPercentile(99), histogram.getValueAtPercentile(99.9), histogram.getMaxValue());
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length != 3) {
+            System.out.println("===== Error usage: java LoadGenerator server_port users seconds =====");
+            return;
+        }
+        int port;
+        int users;
+        long seconds;
+        try {
+            port = Integer.parseInt(args[0]);
+            users = Integer.parseInt(args[1]);
+            seconds = Long.parseLong(args[2]);
+        } catch (NumberFormatException e) {
+            System.out.println("===== Error usage: java LoadGenerator server_port users seconds =====");
+            return;
+        }
+        LoadGenerator generator = new LoadGenerator(System.getProperty("load.host", "localhost"), port, users,
+                parseMix(System.getProperty("load.mix", DEFAULT_MIX)), Long.getLong("load.think.ms", 0));
+        generator.run(Long.getLong("load.warmup.seconds", 5), seconds);
+    }
+}
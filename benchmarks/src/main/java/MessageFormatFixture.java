@@ -0,0 +1,17 @@
+import bench.MessageFormatBenchmark;
+
+public class MessageFormatFixture implements MessageFormatBenchmark.Fixture {
+    private static final String TEXT = "Are you coming to the meeting this afternoon?";
+
+    private final Message message = new Message(TEXT, "hans", "yoda");
+
+    @Override
+    public String createAndFormat() {
+        return new Message(TEXT, "hans", "yoda").toString();
+    }
+
+    @Override
+    public String format() {
+        return message.toString();
+    }
+}
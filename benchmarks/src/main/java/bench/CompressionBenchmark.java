@@ -0,0 +1,72 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The CPU that frame compression costs against the bytes it saves, for a chat message of
+ * growing length at deflate level 0 (sent raw), 1 (the server's default) and 6. The sender pays
+ * encode once per broadcast, each recipient that asked for compression pays decode. The size of
+ * the frame on the wire is printed at the start of each trial.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CompressionBenchmark {
+    public interface Fixture {
+        void open(int messageLength, int level);
+
+        /**
+         * Builds the push frame for the message, deflated unless the level is 0.
+         */
+        Object encode();
+
+        /**
+         * Reads the message back out of the frame built by open.
+         */
+        String decode() throws IOException;
+
+        int frameBytes();
+    }
+
+    @Param({"256", "4096", "65536"})
+    public int messageLength;
+
+    @Param({"0", "1", "6"})
+    public int level;
+
+    private Fixture fixture;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fixture = Fixtures.load("CompressionFixture", Fixture.class);
+        fixture.open(messageLength, level);
+        System.out.printf("%n%d byte message at level %d is %d bytes on the wire%n", messageLength, level, fixture.frameBytes());
+    }
+
+    @Benchmark
+    public Object encode() {
+        return fixture.encode();
+    }
+
+    @Benchmark
+    public String decode() throws IOException {
+        return fixture.decode();
+    }
+}
@@ -0,0 +1,63 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Command dispatch in ClientHandler.handleActiveUser. A logged in ClientHandler runs on its own
+ * thread behind a loopback connection, and each operation is one command and its reply, so the
+ * time includes framing both ways as well as the command itself.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DispatchBenchmark {
+    public interface Fixture {
+        void open(String command) throws IOException;
+
+        /**
+         * Sends the command with its arguments and waits for the reply.
+         */
+        String roundTrip() throws IOException;
+
+        void close() throws IOException;
+    }
+
+    @Param({"WHOELSE", "BLOCK", "MESSAGE"})
+    public String command;
+
+    private Fixture fixture;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fixture = Fixtures.load("DispatchFixture", Fixture.class);
+        fixture.open(command);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fixture.close();
+    }
+
+    @Benchmark
+    public String command() throws IOException {
+        return fixture.roundTrip();
+    }
+}
@@ -0,0 +1,20 @@
+package bench;
+
+/**
+ * The server classes are in the default package, which a named package can not import, and JMH
+ * only runs benchmarks that are in a named package. So each benchmark declares the operations it
+ * measures as a Fixture interface, implemented by a default package class next to it that is
+ * loaded by name once per trial. After warmup the interface calls are inlined like direct calls.
+ */
+final class Fixtures {
+    private Fixtures() {
+    }
+
+    static <T> T load(String className, Class<T> type) {
+        try {
+            return type.cast(Class.forName(className).getDeclaredConstructor().newInstance());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Can not load benchmark fixture " + className, e);
+        }
+    }
+}
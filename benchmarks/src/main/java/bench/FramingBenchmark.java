@@ -0,0 +1,72 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Length-prefixed framing in MessageHandler, once on in-memory buffers as the selector based
+ * server does it and once through a pair of connected loopback sockets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FramingBenchmark {
+    public interface Fixture {
+        void open(int messageLength) throws IOException;
+
+        /**
+         * Encodes a frame into a new buffer and decodes its payload back into a String.
+         */
+        String encodeDecode() throws IOException;
+
+        /**
+         * Sends a frame on one end of the loopback connection and receives it on the other.
+         */
+        String sendReceive() throws IOException;
+
+        void close() throws IOException;
+    }
+
+    @Param({"16", "256", "4096"})
+    public int messageLength;
+
+    private Fixture fixture;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        fixture = Fixtures.load("FramingFixture", Fixture.class);
+        fixture.open(messageLength);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        fixture.close();
+    }
+
+    @Benchmark
+    public String inMemory() throws IOException {
+        return fixture.encodeDecode();
+    }
+
+    @Benchmark
+    public String loopback() throws IOException {
+        return fixture.sendReceive();
+    }
+}
@@ -0,0 +1,46 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+class CommandHandlerTest {
+
+    @Test
+    void userListTooLongForOneFrameIsCutAtAWholeUser() {
+        String name = "u".repeat(CommandHandler.MAX_USERNAME_LENGTH);
+        int users = MessageHandler.MAX_FRAME_LENGTH / name.length() + 100;
+        StringBuilder list = new StringBuilder();
+        for (int i = 0; i < users; i++) {
+            list.append(name).append(System.lineSeparator());
+        }
+
+        String reply = CommandHandler.listReply(list.toString());
+
+        assertTrue(reply.getBytes(StandardCharsets.UTF_8).length <= MessageHandler.MAX_FRAME_LENGTH);
+        String[] lines = reply.split(System.lineSeparator());
+        int listed = lines.length - 1;
+        for (int i = 0; i < listed; i++) {
+            assertEquals(name, lines[i]);
+        }
+        assertEquals("AND " + (users - listed) + " MORE", lines[listed]);
+        MessageHandler.encodeFrame(reply, false);
+    }
+
+    @Test
+    void shortUserListIsSentAsIs() {
+        String list = "alice" + System.lineSeparator() + "bob" + System.lineSeparator();
+        assertEquals(list, CommandHandler.listReply(list));
+        assertEquals(Status.NONE.text, CommandHandler.listReply(""));
+    }
+
+    @Test
+    void frameTooLargeForThePeerIsNotBuilt() {
+        ByteBuffer payload = ByteBuffer.allocate(MessageHandler.MAX_FRAME_LENGTH + 1);
+        assertThrows(IllegalArgumentException.class, () -> MessageHandler.encodeFrame(payload, MessageHandler.PUSH_FLAG));
+        assertThrows(IllegalArgumentException.class, () -> MessageHandler.encodeFrame(payload, MessageHandler.PUSH_FLAG, true));
+    }
+}
@@ -0,0 +1,111 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class CredentialStoreTest {
+    private static final String LONGEST_NAME = "n".repeat(CredentialStore.MAX_FIELD_LENGTH);
+    private static final String TOO_LONG_NAME = "n".repeat(CredentialStore.MAX_FIELD_LENGTH + 1);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void longestNameSurvivesImportAndReopen() throws IOException {
+        Path text = dir.resolve("credentials.txt");
+        Files.write(text, List.of(LONGEST_NAME + " secret", TOO_LONG_NAME + " secret", "alice password"));
+        Path db = dir.resolve("credentials.db");
+
+        CredentialStore.open(db, text, name -> true);
+        CredentialStore reopened = CredentialStore.open(db, text, name -> true);
+
+        assertTrue(PasswordHash.verify(reopened.passwordHash(LONGEST_NAME), "secret"));
+        assertTrue(PasswordHash.verify(reopened.passwordHash("alice"), "password"));
+        assertFalse(reopened.contains(TOO_LONG_NAME));
+        assertEquals(2, reopened.size());
+    }
+
+    @Test
+    void longestNameSurvivesGrowAndReopen() throws IOException, InterruptedException {
+        Path db = dir.resolve("credentials.db");
+        CredentialStore store = CredentialStore.open(db, dir.resolve("missing.txt"), name -> true);
+        // Enough users to make the writer grow the index at least once
+        for (int i = 0; i < 1000; i++) {
+            store.append("user" + i, "hash" + i);
+        }
+        store.append(LONGEST_NAME, "longest");
+        awaitWritten(store, LONGEST_NAME);
+
+        CredentialStore reopened = CredentialStore.open(db, dir.resolve("missing.txt"), name -> true);
+        assertEquals("longest", reopened.passwordHash(LONGEST_NAME));
+        assertEquals("hash0", reopened.passwordHash("user0"));
+        assertEquals("hash999", reopened.passwordHash("user999"));
+        assertEquals(1001, reopened.size());
+    }
+
+    @Test
+    void importedPasswordsAreNotStoredInPlainText() throws IOException {
+        Path text = dir.resolve("credentials.txt");
+        Files.write(text, List.of("alice plaintext-secret", "bob other-plaintext"));
+        Path db = dir.resolve("credentials.db");
+
+        CredentialStore store = CredentialStore.open(db, text, name -> true);
+
+        String file = new String(Files.readAllBytes(db), StandardCharsets.ISO_8859_1);
+        assertFalse(file.contains("plaintext-secret"));
+        assertFalse(file.contains("other-plaintext"));
+        assertTrue(PasswordHash.verify(store.passwordHash("alice"), "plaintext-secret"));
+        assertFalse(PasswordHash.needsRehash(store.passwordHash("bob")));
+    }
+
+    @Test
+    void growDropsSupersededHashes() throws IOException, InterruptedException {
+        Path db = dir.resolve("credentials.db");
+        CredentialStore store = CredentialStore.open(db, dir.resolve("missing.txt"), name -> true);
+        store.append("alice", "superseded-hash");
+        awaitWritten(store, "alice", "superseded-hash");
+        store.update("alice", "current-hash");
+        awaitWritten(store, "alice", "current-hash");
+        // Enough users to make the writer grow the index after the update
+        for (int i = 0; i < 1000; i++) {
+            store.append("user" + i, "hash" + i);
+        }
+        awaitWritten(store, "user999");
+
+        String file = new String(Files.readAllBytes(db), StandardCharsets.ISO_8859_1);
+        assertFalse(file.contains("superseded-hash"));
+        CredentialStore reopened = CredentialStore.open(db, dir.resolve("missing.txt"), name -> true);
+        assertEquals("current-hash", reopened.passwordHash("alice"));
+        assertEquals(1001, reopened.size());
+    }
+
+    @Test
+    void tooLongNameIsRejectedWhenQueued() throws IOException {
+        CredentialStore store = CredentialStore.open(dir.resolve("credentials.db"), dir.resolve("missing.txt"), name -> true);
+
+        assertThrows(IllegalArgumentException.class, () -> store.append(TOO_LONG_NAME, "hash"));
+        assertThrows(IllegalArgumentException.class, () -> store.update("alice", "h".repeat(CredentialStore.MAX_FIELD_LENGTH + 1)));
+        assertEquals(0, store.size());
+    }
+
+    private static void awaitWritten(CredentialStore store, String username) throws InterruptedException {
+        for (int i = 0; i < 200 && !store.contains(username); i++) {
+            Thread.sleep(25);
+        }
+    }
+
+    private static void awaitWritten(CredentialStore store, String username, String passwordHash) throws InterruptedException {
+        for (int i = 0; i < 200 && !passwordHash.equals(store.passwordHash(username)); i++) {
+            Thread.sleep(25);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+class DeliveryExecutorTest {
+
+    @Test
+    void messageTurnedAwayByFullLaneIsDrainedAfterTheOnesQueuedBeforeIt() throws InterruptedException {
+        CountDownLatch pushing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        UserRegistry userRegistry = new UserRegistry(new InMemoryMailbox());
+        Profile slow = userRegistry.registerAndLogin("alice", "hash", message -> {
+            pushing.countDown();
+            try {
+                return release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        });
+        slow.finishDrain();
+        List<String> received = new CopyOnWriteArrayList<>();
+        Profile recipient = userRegistry.registerAndLogin("bob", "hash", received::add);
+        recipient.finishDrain();
+        MailboxDrainer mailboxDrainer = new MailboxDrainer(1);
+        DeliveryExecutor deliveryExecutor = new DeliveryExecutor(1, 2, mailboxDrainer);
+
+        deliveryExecutor.deliver(slow, new PushMessage("running"));
+        assertTrue(pushing.await(5, TimeUnit.SECONDS));
+        deliveryExecutor.deliver(recipient, new PushMessage("first"));
+        deliveryExecutor.deliver(recipient, new PushMessage("second"));
+        deliveryExecutor.deliver(recipient, new PushMessage("rejected"));
+        assertEquals(3, deliveryExecutor.getRejected());
+
+        for (int i = 0; i < 200 && received.size() < 3; i++) {
+            Thread.sleep(25);
+        }
+        release.countDown();
+        assertEquals(List.of("first", "second", "rejected"), received);
+    }
+
+    @Test
+    void messageTurnedAwayForLoggedOutRecipientIsKeptWithoutADrain() throws InterruptedException {
+        CountDownLatch pushing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        UserRegistry userRegistry = new UserRegistry(new InMemoryMailbox());
+        Profile slow = userRegistry.registerAndLogin("alice", "hash", message -> {
+            pushing.countDown();
+            try {
+                return release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                return false;
+            }
+        });
+        slow.finishDrain();
+        Profile recipient = userRegistry.registerAndLogin("bob", "hash", message -> true);
+        recipient.logout();
+        MailboxDrainer mailboxDrainer = new MailboxDrainer(1);
+        DeliveryExecutor deliveryExecutor = new DeliveryExecutor(1, 1, mailboxDrainer);
+
+        deliveryExecutor.deliver(slow, new PushMessage("running"));
+        assertTrue(pushing.await(5, TimeUnit.SECONDS));
+        deliveryExecutor.deliver(recipient, new PushMessage("queued"));
+        deliveryExecutor.deliver(recipient, new PushMessage("rejected"));
+        release.countDown();
+
+        assertEquals(0, mailboxDrainer.getDrains());
+        assertEquals(0, mailboxDrainer.getInterrupted());
+        assertEquals(List.of("queued", "rejected"), recipient.takeAwaitingMessages(10, 1 << 16));
+    }
+}
@@ -0,0 +1,95 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class MappedMailboxTest {
+    private static final int SEGMENT_SIZE = 1 << 20;
+    // Where a record keeps the position of the user's next record, after its int length and byte state
+    private static final int NEXT_OFFSET = 5;
+    private static final String LONGEST_NAME = "n".repeat(MappedMailbox.MAX_USERNAME_BYTES);
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void longestNameSurvivesRecoveryAndDrain() throws IOException {
+        MappedMailbox mailbox = new MappedMailbox(dir, 2, SEGMENT_SIZE);
+        mailbox.append(LONGEST_NAME, "first");
+        mailbox.append("alice", "hello");
+        mailbox.append(LONGEST_NAME, "second");
+        mailbox.close();
+
+        MappedMailbox reopened = new MappedMailbox(dir, 2, SEGMENT_SIZE);
+        assertEquals(2, reopened.pendingCount(LONGEST_NAME));
+        assertEquals(List.of("first", "second"), reopened.drain(LONGEST_NAME, 10, SEGMENT_SIZE));
+        assertEquals(List.of("hello"), reopened.drain("alice", 10, SEGMENT_SIZE));
+        assertEquals(0, reopened.totalPending());
+        reopened.close();
+    }
+
+    @Test
+    void recordLeftUnlinkedByACrashIsStillDrained() throws IOException {
+        MappedMailbox mailbox = new MappedMailbox(dir, 1, SEGMENT_SIZE);
+        mailbox.append("alice", "first");
+        mailbox.append("alice", "second");
+        mailbox.close();
+        // As if the first record's page reached the disk before its link to the second
+        try (FileChannel segment = FileChannel.open(dir.resolve("shard-0-0.log"), StandardOpenOption.WRITE)) {
+            segment.write(ByteBuffer.allocate(8).putLong(0, -1), NEXT_OFFSET);
+        }
+
+        MappedMailbox reopened = new MappedMailbox(dir, 1, SEGMENT_SIZE);
+        assertEquals(2, reopened.pendingCount("alice"));
+        assertEquals(List.of("first", "second"), reopened.drain("alice", 10, SEGMENT_SIZE));
+        assertEquals(0, reopened.pendingCount("alice"));
+        reopened.close();
+    }
+
+    @Test
+    void compactionMovesMessagesOutOfMostlyDeliveredSegments() throws IOException {
+        int segmentSize = 4096;
+        MappedMailbox mailbox = new MappedMailbox(dir, 1, segmentSize);
+        mailbox.append("ghost", "oldest");
+        String filler = "x".repeat(500);
+        for (int i = 0; i < 40; i++) {
+            mailbox.append("alice", filler);
+        }
+        mailbox.append("ghost", "newest");
+        assertEquals(40, mailbox.drain("alice", 100, Integer.MAX_VALUE).size());
+
+        mailbox.compact();
+        assertEquals(1, segmentFiles());
+        mailbox.close();
+
+        MappedMailbox reopened = new MappedMailbox(dir, 1, segmentSize);
+        assertEquals(List.of("oldest", "newest"), reopened.drain("ghost", 10, segmentSize));
+        assertEquals(0, reopened.totalPending());
+        reopened.close();
+    }
+
+    @Test
+    void tooLongNameIsRejected() throws IOException {
+        MappedMailbox mailbox = new MappedMailbox(dir, 1, SEGMENT_SIZE);
+
+        assertThrows(IllegalArgumentException.class, () -> mailbox.append(LONGEST_NAME + "n", "message"));
+        assertEquals(0, mailbox.totalPending());
+        mailbox.close();
+    }
+
+    private long segmentFiles() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.count();
+        }
+    }
+}
@@ -0,0 +1,39 @@
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class PasswordHashTest {
+
+    @Test
+    void verifiesHashAndPlainPassword() {
+        String stored = PasswordHash.hash("correct horse");
+
+        assertTrue(PasswordHash.verify(stored, "correct horse"));
+        assertFalse(PasswordHash.verify(stored, "wrong horse"));
+        assertTrue(PasswordHash.verify("plain", "plain"));
+        assertFalse(PasswordHash.needsRehash(stored));
+        assertTrue(PasswordHash.needsRehash("plain"));
+    }
+
+    @ParameterizedTest
+    @ValueSource(strings = {
+            "pbkdf2-sha256$",
+            "pbkdf2-sha256$1000",
+            "pbkdf2-sha256$1000$c2FsdA",
+            "pbkdf2-sha256$1000$c2FsdA$aGFzaA$extra",
+            "pbkdf2-sha256$many$c2FsdA$aGFzaA",
+            "pbkdf2-sha256$99999999999$c2FsdA$aGFzaA",
+            "pbkdf2-sha256$0$c2FsdA$aGFzaA",
+            "pbkdf2-sha256$-5$c2FsdA$aGFzaA",
+            "pbkdf2-sha256$1000$$aGFzaA",
+            "pbkdf2-sha256$1000$c2FsdA$",
+            "pbkdf2-sha256$1000$not*base64$aGFzaA",
+            "pbkdf2-sha256$1000$c2FsdA$not*base64",
+    })
+    void malformedHashFailsInsteadOfThrowing(String stored) {
+        assertFalse(PasswordHash.verify(stored, "anything"));
+    }
+}
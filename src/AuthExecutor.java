@@ -0,0 +1,71 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Runs password hashing on a small fixed pool of its own. Hashing is slow on purpose, so a burst
+ * of logins, say everyone reconnecting after an outage, waits in this pool's bounded queue
+ * instead of taking the CPU from connections and message delivery. A login that finds the queue
+ * full is turned away at once.
+ */
+public class AuthExecutor {
+    private final ThreadPoolExecutor pool;
+    private final ServerMetrics metrics;
+    private final LongAdder rejected = new LongAdder();
+
+    public AuthExecutor(int threads, int queueCapacity, ServerMetrics metrics) {
+        this.metrics = metrics;
+        this.pool = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueCapacity), runnable -> {
+            Thread thread = new Thread(runnable, "auth");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Runs the task on the pool and waits for its result. Returns null when the queue was full.
+     */
+    public <T> T call(Supplier<T> task) {
+        long queuedAt = System.nanoTime();
+        Future<T> result;
+        try {
+            result = pool.submit(() -> {
+                long startedAt = System.nanoTime();
+                metrics.authQueued(startedAt - queuedAt);
+                try {
+                    return task.get();
+                } finally {
+                    metrics.authDone(startedAt);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.increment();
+            return null;
+        }
+        try {
+            return result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            result.cancel(false);
+            return null;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException cause) {
+                throw cause;
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public int getQueueDepth() {
+        return pool.getQueue().size();
+    }
+}
@@ -0,0 +1,236 @@
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Version 2 of the command protocol. A client asks for it by sending "HELLO 2" instead of
+ * "HELLO" and the server answers "HELLO 2" when it agrees; servers that only know version 1
+ * go straight to "USERNAME", so either side can fall back. Login stays text based.
+ *
+ * After login each command is one frame: a one byte opcode, a 4 byte correlation id chosen by the
+ * client, then the command's fields. A text field is a 4 byte length and its UTF-8 bytes, a
+ * number is a 4 byte int. Each reply is one frame: a one byte Status code, the correlation id of
+ * the command it answers, then a text field for the commands that return a user list. A long
+ * user list comes back as several frames with the same correlation id, every one but the last
+ * carrying Status.MORE. Commands are run in the order they arrive, so a client may send several
+ * before reading any replies.
+ *
+ * A client that also sends " deflate" in its hello, "HELLO 2 deflate", asks for compressed frames
+ * (see FrameCompression). The server echoes the whole hello back when it agrees and answers
+ * "HELLO 2" when it does not; either way version 2 is in use. Servers that predate compression
+ * answer "USERNAME" to it as they would to any other hello they do not know.
+ *
+ * Messages kept while a version 2 client was away arrive as batch pushes, frames with both
+ * MessageHandler.PUSH_FLAG and MessageHandler.BATCH_FLAG set whose payload is a 4 byte count
+ * followed by that many text fields.
+ */
+public class BinaryProtocol {
+    public static final int VERSION = 2;
+    public static final String HELLO = "HELLO " + VERSION;
+    public static final String HELLO_DEFLATE = HELLO + " " + FrameCompression.DEFLATE;
+
+    public static final byte MESSAGE = 1;
+    public static final byte BROADCAST = 2;
+    public static final byte WHOELSE = 3;
+    public static final byte WHOELSESINCE = 4;
+    public static final byte BLOCK = 5;
+    public static final byte UNBLOCK = 6;
+    public static final byte LOGOUT = 7;
+
+    /**
+     * Returns the protocol version to use for a connection that opened with the given hello.
+     */
+    public static int negotiateVersion(String hello) {
+        return HELLO.equals(hello) || HELLO_DEFLATE.equals(hello) ? VERSION : 1;
+    }
+
+    /**
+     * Whether a connection that opened with the given hello gets compressed frames.
+     */
+    public static boolean negotiateCompression(String hello) {
+        return FrameCompression.ENABLED && HELLO_DEFLATE.equals(hello);
+    }
+
+    /**
+     * The server's answer to a version 2 hello.
+     */
+    public static String helloReply(boolean compression) {
+        return compression ? HELLO_DEFLATE : HELLO;
+    }
+
+    /**
+     * Where the server writes reply frames for one connection.
+     */
+    public interface ReplySink {
+        void send(ByteBuffer reply) throws IOException;
+    }
+
+    // ===== Server side =====
+
+    public static boolean isLogout(ByteBuffer request) {
+        return request.hasRemaining() && request.get(request.position()) == LOGOUT;
+    }
+
+    /**
+     * Runs one command frame and sends its reply frames.
+     */
+    public static void handle(CommandHandler commandHandler, Profile clientProfile, ByteBuffer request, ReplySink replies) throws IOException {
+        long start = System.nanoTime();
+        String command = request.hasRemaining() ? commandName(request.get(request.position())) : null;
+        ByteBuffer reply = handleCommand(commandHandler, clientProfile, request, replies);
+        if (reply != null) {
+            replies.send(reply);
+        }
+        commandHandler.getMetrics().commandDone(command, start);
+    }
+
+    /**
+     * Returns the version 1 verb for an opcode, or null for LOGOUT and unknown opcodes.
+     */
+    public static String commandName(byte opcode) {
+        return opcode >= MESSAGE && opcode <= UNBLOCK ? ServerMetrics.COMMANDS[opcode - MESSAGE] : null;
+    }
+
+    /**
+     * Returns the reply for a command that has a single one, or null after streaming a user list.
+     */
+    private static ByteBuffer handleCommand(CommandHandler commandHandler, Profile clientProfile, ByteBuffer request, ReplySink replies) throws IOException {
+        int correlationId = 0;
+        try {
+            byte opcode = request.get();
+            correlationId = request.getInt();
+            switch (opcode) {
+                case MESSAGE: {
+                    String destinationUser = getString(request);
+                    String message = getString(request);
+                    return reply(correlationId, commandHandler.message(clientProfile, destinationUser, message));
+                }
+                case BROADCAST:
+                    return reply(correlationId, commandHandler.broadcast(clientProfile, getString(request)));
+                case WHOELSE:
+                    commandHandler.whoelse(clientProfile, listReplies(correlationId, replies));
+                    return null;
+                case WHOELSESINCE:
+                    commandHandler.whoelsesince(clientProfile, request.getInt(), listReplies(correlationId, replies));
+                    return null;
+                case BLOCK:
+                    return reply(correlationId, commandHandler.blockUser(clientProfile, getString(request)));
+                case UNBLOCK:
+                    return reply(correlationId, commandHandler.unblockUser(clientProfile, getString(request)));
+                default:
+                    return reply(correlationId, Status.INVALID_COMMAND);
+            }
+        } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+            return reply(correlationId, Status.INVALID_COMMAND);
+        }
+    }
+
+    public static ByteBuffer reply(int correlationId, Status status) {
+        return ByteBuffer.allocate(5).put(status.code).putInt(correlationId).flip();
+    }
+
+    public static ByteBuffer reply(int correlationId, String usersOnline) {
+        if (usersOnline.isBlank()) {
+            return reply(correlationId, Status.NONE);
+        }
+        return reply(correlationId, Status.OK, usersOnline);
+    }
+
+    public static ByteBuffer reply(int correlationId, Status status, String users) {
+        byte[] text = users.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(5 + 4 + text.length).put(status.code).putInt(correlationId).putInt(text.length).put(text).flip();
+    }
+
+    /**
+     * Sends each chunk of a user list as it is produced. An empty list is a single NONE reply.
+     */
+    private static CommandHandler.UserListSink listReplies(int correlationId, ReplySink replies) {
+        return new CommandHandler.UserListSink() {
+            private boolean sentChunk = false;
+
+            @Override
+            public void chunk(String users, boolean last) throws IOException {
+                if (!last) {
+                    replies.send(reply(correlationId, Status.MORE, users));
+                    sentChunk = true;
+                } else if (sentChunk) {
+                    replies.send(reply(correlationId, Status.OK, users));
+                } else {
+                    replies.send(reply(correlationId, users));
+                }
+            }
+        };
+    }
+
+    public static ByteBuffer batch(List<String> messages) {
+        byte[][] encoded = new byte[messages.size()][];
+        int length = 4;
+        for (int i = 0; i < encoded.length; i++) {
+            encoded[i] = messages.get(i).getBytes(StandardCharsets.UTF_8);
+            length += 4 + encoded[i].length;
+        }
+        ByteBuffer batch = ByteBuffer.allocate(length).putInt(encoded.length);
+        for (byte[] message : encoded) {
+            batch.putInt(message.length).put(message);
+        }
+        return batch.flip();
+    }
+
+    // ===== Client side =====
+
+    public static ByteBuffer request(byte opcode, int correlationId, String... fields) {
+        byte[][] encoded = new byte[fields.length][];
+        int length = 5;
+        for (int i = 0; i < fields.length; i++) {
+            encoded[i] = fields[i].getBytes(StandardCharsets.UTF_8);
+            length += 4 + encoded[i].length;
+        }
+        ByteBuffer request = ByteBuffer.allocate(length).put(opcode).putInt(correlationId);
+        for (byte[] field : encoded) {
+            request.putInt(field.length).put(field);
+        }
+        return request.flip();
+    }
+
+    public static ByteBuffer whoelsesince(int correlationId, int seconds) {
+        return ByteBuffer.allocate(9).put(WHOELSESINCE).putInt(correlationId).putInt(seconds).flip();
+    }
+
+    /**
+     * Reads the correlation id of a reply without moving its position.
+     */
+    public static int getCorrelationId(ByteBuffer reply) {
+        return reply.getInt(reply.position() + 1);
+    }
+
+    /**
+     * Reads the status and skips the correlation id, leaving any text field to be read next.
+     */
+    public static Status getStatus(ByteBuffer reply) {
+        Status status = Status.fromCode(reply.get());
+        reply.getInt();
+        return status;
+    }
+
+    public static List<String> getBatch(ByteBuffer payload) {
+        ByteBuffer batch = payload.duplicate();
+        int count = batch.getInt();
+        List<String> messages = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            messages.add(getString(batch));
+        }
+        return messages;
+    }
+
+    // ===== Fields =====
+
+    public static String getString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        ByteBuffer field = buffer.slice(buffer.position(), length);
+        buffer.position(buffer.position() + length);
+        return StandardCharsets.UTF_8.decode(field).toString();
+    }
+}
@@ -0,0 +1,418 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One connection to the server, driven from code rather than a terminal. It negotiates the
+ * protocol version, logs in and sends commands, while its receive thread hands pushes to the
+ * Listener and replies to whichever command is waiting for them. Used by the interactive Client
+ * and by load generators.
+ *
+ * When the server is one node of a cluster and the user lives on another, sendUsername follows
+ * the redirect and carries on with that node.
+ *
+ * With compression asked for, large frames in both directions are deflated if the server agrees.
+ */
+public class ChatClient implements Closeable {
+    // Queued for anyone waiting on a login reply once the connection is gone
+    private static final Frame CLOSED = new Frame(false, ByteBuffer.allocate(0));
+
+    /**
+     * Called on the receive thread, so implementations should not block.
+     */
+    public interface Listener {
+        void pushed(String message);
+
+        /**
+         * The server closed the connection after login without the client logging out.
+         */
+        default void disconnected() {
+        }
+    }
+
+    // Replaced when a cluster node redirects the login
+    private volatile SocketChannel socket;
+    private volatile MessageHandler messageHandler;
+    private Thread receiveThread;
+    private final Listener listener;
+    // Login replies, separated from pushes by the receive thread
+    private final BlockingDeque<Frame> replies = new LinkedBlockingDeque<>();
+    private volatile boolean binaryProtocol = false;
+    private final boolean askForCompression;
+    private volatile boolean compression = false;
+    private volatile boolean loggedIn = false;
+    private volatile boolean loggingOut = false;
+    private String loginBlockSeconds;
+    // Commands waiting for a reply: by correlation id with the binary protocol, in send order otherwise
+    private final Map<Integer, CompletableFuture<Frame>> pendingById = new ConcurrentHashMap<>();
+    private final Queue<CompletableFuture<Frame>> pendingInOrder = new ConcurrentLinkedQueue<>();
+    // Chunks of user lists still arriving, only touched by the receive thread
+    private final Map<Integer, StringBuilder> userListChunks = new HashMap<>();
+    private final AtomicInteger nextCorrelationId = new AtomicInteger();
+    private final Object sendLock = new Object();
+
+    public ChatClient(String host, int port, Listener listener) throws IOException {
+        this(host, port, listener, false);
+    }
+
+    public ChatClient(String host, int port, Listener listener, boolean askForCompression) throws IOException {
+        this.listener = listener;
+        this.askForCompression = askForCompression;
+        connect(host, port);
+    }
+
+    private void connect(String host, int port) throws IOException {
+        socket = SocketChannel.open(new InetSocketAddress(host, port));
+        messageHandler = new MessageHandler(socket);
+        MessageHandler receiver = messageHandler;
+        receiveThread = new Thread(() -> receiveFrames(receiver), "client-receive");
+        receiveThread.setDaemon(true);
+        receiveThread.start();
+        send(askForCompression ? BinaryProtocol.HELLO_DEFLATE : BinaryProtocol.HELLO);
+        negotiateProtocol();
+    }
+
+    /**
+     * Drops the connection before login and opens one to the given host:port instead.
+     */
+    private void reconnect(String address) throws IOException {
+        socket.close();
+        try {
+            receiveThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while reconnecting", e);
+        }
+        replies.clear();
+        binaryProtocol = false;
+        compression = false;
+        int colon = address.lastIndexOf(':');
+        connect(address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)));
+    }
+
+    /**
+     * A server that speaks the binary protocol acknowledges our hello, an older one goes
+     * straight to asking for the username, which is put back for sendUsername.
+     */
+    private void negotiateProtocol() throws IOException {
+        Frame response = receiveReplyFrame();
+        String text = response.text();
+        if (text.equals(BinaryProtocol.HELLO_DEFLATE)) {
+            binaryProtocol = true;
+            compression = true;
+            messageHandler.enableCompression();
+        } else if (text.equals(BinaryProtocol.HELLO)) {
+            binaryProtocol = true;
+        } else {
+            replies.addFirst(response);
+        }
+    }
+
+    public boolean isBinaryProtocol() {
+        return binaryProtocol;
+    }
+
+    /**
+     * Whether the server agreed to compressed frames.
+     */
+    public boolean isCompressed() {
+        return compression;
+    }
+
+    /**
+     * Reads every frame the server sends. Pushed messages go to the listener and command
+     * replies to whichever command is waiting for them.
+     */
+    private void receiveFrames(MessageHandler receiver) {
+        while (true) {
+            try {
+                Frame frame = receiver.receiveClientFrame();
+                if (!frame.push) {
+                    completeReply(frame);
+                } else if (frame.batch) {
+                    BinaryProtocol.getBatch(frame.payload).forEach(listener::pushed);
+                } else {
+                    listener.pushed(frame.text());
+                }
+            } catch (SocketException | EOFException | ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                e.printStackTrace();
+                break;
+            }
+        }
+        replies.add(CLOSED);
+        failPending(new IOException("Connection closed"));
+        // Before login a closed connection shows up as the login reply failing instead
+        if (loggedIn && !loggingOut) {
+            listener.disconnected();
+        }
+    }
+
+    private void failPending(IOException cause) {
+        pendingById.values().forEach(pending -> pending.completeExceptionally(cause));
+        pendingById.clear();
+        CompletableFuture<Frame> pending;
+        while ((pending = pendingInOrder.poll()) != null) {
+            pending.completeExceptionally(cause);
+        }
+    }
+
+    private void send(String msg) throws IOException {
+        messageHandler.sendMessage(msg);
+    }
+
+    private void send(ByteBuffer payload) throws IOException {
+        messageHandler.sendFrame(payload, 0);
+    }
+
+    private Frame receiveReplyFrame() throws IOException {
+        try {
+            Frame frame = replies.take();
+            if (frame == CLOSED) {
+                replies.add(CLOSED);
+                throw new EOFException("Connection closed");
+            }
+            return frame;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the server", e);
+        }
+    }
+
+    private String receiveReply() throws IOException {
+        return receiveReplyFrame().text();
+    }
+
+    private void completeReply(Frame frame) {
+        CompletableFuture<Frame> pending = null;
+        if (loggedIn && binaryProtocol) {
+            frame = joinUserListChunks(frame);
+            if (frame == null) {
+                return;
+            }
+            pending = pendingById.remove(BinaryProtocol.getCorrelationId(frame.payload));
+        } else if (loggedIn) {
+            pending = pendingInOrder.poll();
+        }
+        if (pending != null) {
+            pending.complete(frame);
+        } else {
+            replies.add(frame);
+        }
+    }
+
+    /**
+     * Holds back the chunks of a user list until its last one arrives, then returns a single
+     * reply carrying the whole list. Returns null while more chunks are expected.
+     */
+    private Frame joinUserListChunks(Frame frame) {
+        int correlationId = BinaryProtocol.getCorrelationId(frame.payload);
+        ByteBuffer payload = frame.payload.duplicate();
+        Status status = BinaryProtocol.getStatus(payload);
+        if (status == Status.MORE) {
+            userListChunks.computeIfAbsent(correlationId, id -> new StringBuilder()).append(BinaryProtocol.getString(payload));
+            return null;
+        }
+        StringBuilder chunks = userListChunks.remove(correlationId);
+        if (chunks == null) {
+            return frame;
+        }
+        if (status == Status.OK) {
+            chunks.append(BinaryProtocol.getString(payload));
+        }
+        return new Frame(false, BinaryProtocol.reply(correlationId, chunks.toString()));
+    }
+
+    // ===== Login =====
+
+    /**
+     * Answers the server's username prompt. Returns "OK" when the account exists and its password
+     * should follow, "NEW USER" when the password for a new account should follow, or
+     * "ALREADY LOGGED IN" / "USER IS BLOCKED" / "INVALID USERNAME".
+     */
+    public String sendUsername(String username) throws IOException {
+        String response = sendUsernameOnce(username);
+        if (response.startsWith(CommandHandler.MOVED)) {
+            reconnect(response.substring(CommandHandler.MOVED.length()));
+            response = sendUsernameOnce(username);
+        }
+        return response;
+    }
+
+    private String sendUsernameOnce(String username) throws IOException {
+        String prompt = receiveReply();
+        if (!prompt.equals("USERNAME")) {
+            throw new IOException("Expected the username prompt but got " + prompt);
+        }
+        send(username);
+        return receiveReply();
+    }
+
+    /**
+     * Sends a password after sendUsername. Returns "OK" once logged in, "Fail" when another
+     * attempt may be made, "MAX ATTEMPT" when the account has been blocked (see
+     * getLoginBlockSeconds), "ALREADY LOGGED IN" when another connection logged in first, or
+     * "SERVER BUSY" when the server turned the login away and closed the connection.
+     */
+    public String sendPassword(String password) throws IOException {
+        send(password);
+        String response = receiveReply();
+        if (response.equals("OK")) {
+            loggedIn = true;
+        } else if (response.equals("MAX ATTEMPT")) {
+            loginBlockSeconds = receiveReply();
+        }
+        return response;
+    }
+
+    public String getLoginBlockSeconds() {
+        return loginBlockSeconds;
+    }
+
+    /**
+     * Logs in to an existing account or creates it. Returns the reply that ended the attempt,
+     * "OK" on success.
+     */
+    public String login(String username, String password) throws IOException {
+        String response = sendUsername(username);
+        if (!response.equals("OK") && !response.equals("NEW USER")) {
+            return response;
+        }
+        return sendPassword(password);
+    }
+
+    public boolean isLoggedIn() {
+        return loggedIn;
+    }
+
+    // ===== Commands =====
+
+    /**
+     * Sends a command in whichever protocol version was negotiated without waiting for the reply.
+     * Any number of commands may be outstanding at once; the server runs them in order.
+     */
+    private CompletableFuture<Frame> sendCommand(byte opcode, String verb, String... arguments) {
+        CompletableFuture<Frame> reply = new CompletableFuture<>();
+        if (binaryProtocol) {
+            int correlationId = nextCorrelationId.incrementAndGet();
+            pendingById.put(correlationId, reply);
+            try {
+                send(BinaryProtocol.request(opcode, correlationId, arguments));
+            } catch (IOException e) {
+                pendingById.remove(correlationId);
+                reply.completeExceptionally(e);
+            }
+            return reply;
+        }
+        synchronized (sendLock) {
+            pendingInOrder.add(reply);
+            try {
+                send(verb);
+                for (String argument : arguments) {
+                    send(argument);
+                }
+            } catch (IOException e) {
+                // Otherwise later replies would be matched to the commands before theirs
+                pendingInOrder.remove(reply);
+                reply.completeExceptionally(e);
+            }
+        }
+        return reply;
+    }
+
+    private Status toStatus(Frame reply) {
+        if (binaryProtocol) {
+            return BinaryProtocol.getStatus(reply.payload.duplicate());
+        }
+        return Status.fromText(reply.text());
+    }
+
+    /**
+     * Returns the user list carried by a reply, or an empty string when there is none.
+     */
+    private String toUserList(Frame reply) {
+        if (binaryProtocol) {
+            ByteBuffer payload = reply.payload.duplicate();
+            Status status = BinaryProtocol.getStatus(payload);
+            return status == Status.OK ? BinaryProtocol.getString(payload) : "";
+        }
+        String text = reply.text();
+        return text.equals(Status.NONE.text) ? "" : text;
+    }
+
+    public CompletableFuture<Status> message(String destinationUser, String message) {
+        return sendCommand(BinaryProtocol.MESSAGE, "MESSAGE", destinationUser, message).thenApply(this::toStatus);
+    }
+
+    public CompletableFuture<Status> broadcast(String message) {
+        return sendCommand(BinaryProtocol.BROADCAST, "BROADCAST", message).thenApply(this::toStatus);
+    }
+
+    public CompletableFuture<String> whoelse() {
+        return sendCommand(BinaryProtocol.WHOELSE, "WHOELSE").thenApply(this::toUserList);
+    }
+
+    public CompletableFuture<String> whoelsesince(int seconds) {
+        if (!binaryProtocol) {
+            return sendCommand(BinaryProtocol.WHOELSESINCE, "WHOELSESINCE", Integer.toString(seconds)).thenApply(this::toUserList);
+        }
+        CompletableFuture<Frame> reply = new CompletableFuture<>();
+        int correlationId = nextCorrelationId.incrementAndGet();
+        pendingById.put(correlationId, reply);
+        try {
+            send(BinaryProtocol.whoelsesince(correlationId, seconds));
+        } catch (IOException e) {
+            pendingById.remove(correlationId);
+            reply.completeExceptionally(e);
+        }
+        return reply.thenApply(this::toUserList);
+    }
+
+    public CompletableFuture<Status> block(String user) {
+        return sendCommand(BinaryProtocol.BLOCK, "BLOCK", user).thenApply(this::toStatus);
+    }
+
+    public CompletableFuture<Status> unblock(String user) {
+        return sendCommand(BinaryProtocol.UNBLOCK, "UNBLOCK", user).thenApply(this::toStatus);
+    }
+
+    /**
+     * Tells the server we are leaving and closes the connection.
+     */
+    public void logout() throws IOException {
+        loggingOut = true;
+        try {
+            if (binaryProtocol) {
+                send(BinaryProtocol.request(BinaryProtocol.LOGOUT, 0));
+            } else {
+                send("LOGOUT");
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * Closes the connection without logging out first.
+     */
+    @Override
+    public void close() throws IOException {
+        loggingOut = true;
+        socket.close();
+    }
+}
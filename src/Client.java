@@ -2,83 +2,40 @@
 // Save file as Client.java
 
 import java.io.*;
-import java.net.*;
-import java.util.HashSet;
 import java.util.Scanner;
-import java.util.Set;
 
 // Client class
 public class Client {
-    private int listenerPort;
-    private int serverPort;
-    private Socket socket;
-    private static Set<Integer> listenerPorts = new HashSet<>();
-    private ServerSocket listenerSocket;
-    private Thread receiveThread;
+    private final ChatClient chatClient;
+    // One scanner for the whole session, a new one per prompt would lose buffered input
+    private final Scanner scanner = new Scanner(System.in);
 
 
-    public Client(int serverPort) {
-        try {
-            this.serverPort = serverPort;
-            InetAddress ip = InetAddress.getByName("localhost");
-            this.socket = new Socket(ip, serverPort);
-            setUpConnections();
-            createThreads();
-        } catch(Exception e) {
-            e.printStackTrace();
-        }
-    }
-
-    private void createThreads() {
-        Thread receiveThread = new Thread(this::recieveMessage);
-        this.receiveThread = receiveThread;
-    }
-
-    private void setUpConnections() throws IOException {
-        MessageHandler.sendMessageOverSocket(socket, "HELLO");
-        int randomSocket = generateRandomPort();
-        listenerPorts.add(randomSocket);
-        this.listenerSocket = new ServerSocket(randomSocket);
-        MessageHandler.sendMessageOverSocket(socket, Integer.toString(randomSocket));
-    }
+    public Client(int serverPort) throws IOException {
+        this.chatClient = new ChatClient("localhost", serverPort, new ChatClient.Listener() {
+            @Override
+            public void pushed(String message) {
+                System.out.println(message);
+            }
 
-    private int generateRandomPort() {
-        int randomSocket = (int) Math.floor(Math.random() * 45000) + 10000;
-        while (listenerPorts.contains(randomSocket)) {
-            randomSocket = (int) Math.floor(Math.random() * 45000) + 10000;
-        }
-        return randomSocket;
+            @Override
+            public void disconnected() {
+                // The server closes connections that have been idle for longer than its timeout
+                System.out.println("Disconnected by the server. If you have been inactive for to long, please log back in");
+                System.exit(0);
+            }
+        }, FrameCompression.ENABLED);
     }
 
     private void run() {
         try {
             handleLogin();
-            this.receiveThread.start();
             handleActiveUser();
         } catch(Exception e){
             e.printStackTrace();
         }
     }
 
-    private void recieveMessage() {
-        while (true) {
-            try {
-                Socket messageReceiverSocket = listenerSocket.accept();
-                String response = MessageHandler.receiveMessageOverSocket(messageReceiverSocket);
-                if (response.equals("LGT")) {
-                    System.out.println("You have been inactive for to long. Please log back in");
-                    handleLogout();
-                    return;
-                }
-                System.out.println(response);
-            } catch (SocketException e) {
-                break;
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        }
-    }
-
     private void handleActiveUser() {
         try {
             while (true) {
@@ -148,9 +105,7 @@ public class Client {
 
     private void handleLogout() {
         try {
-            MessageHandler.sendMessageOverSocket(socket, "LOGOUT");
-            this.socket.close();
-            this.listenerSocket.close();
+            chatClient.logout();
             System.out.println("Goodbye for now");
             System.exit(0);
         } catch (IOException e) {
@@ -159,19 +114,17 @@ public class Client {
     }
 
     private void handleBlockUser(String user) {
-        MessageHandler.sendMessageOverSocket(socket, "BLOCK");
-        MessageHandler.sendMessageOverSocket(socket, user);
-        String response = MessageHandler.receiveMessageOverSocket(socket);
+        Status response = chatClient.block(user).join();
         switch (response) {
-            case "USER NOT FOUND" -> {
+            case USER_NOT_FOUND -> {
                 System.out.println("Error: User does not exist.");
                 return;
             }
-            case "DESTINATION USER IS SELF" -> {
+            case DESTINATION_USER_IS_SELF -> {
                 System.out.println("Error: You can not block yourself.");
                 return;
             }
-            case "USER IS ALREADY BLOCKED" -> {
+            case USER_IS_ALREADY_BLOCKED -> {
                 System.out.println("Error: User is already blocked");
                 return;
             }
@@ -180,19 +133,17 @@ public class Client {
     }
 
     private void handleUnblockUser(String user) {
-        MessageHandler.sendMessageOverSocket(socket, "UNBLOCK");
-        MessageHandler.sendMessageOverSocket(socket, user);
-        String response = MessageHandler.receiveMessageOverSocket(socket);
+        Status response = chatClient.unblock(user).join();
         switch (response) {
-            case "USER NOT FOUND" -> {
+            case USER_NOT_FOUND -> {
                 System.out.println("Error: User does not exist.");
                 return;
             }
-            case "DESTINATION USER IS SELF" -> {
+            case DESTINATION_USER_IS_SELF -> {
                 System.out.println("Error: You can not unblock yourself.");
                 return;
             }
-            case "USER IS NOT BOCKED" -> {
+            case USER_IS_NOT_BLOCKED -> {
                 System.out.println("Error: User is already not blocked");
                 return;
             }
@@ -206,14 +157,12 @@ public class Client {
             if (seconds < 0) {
                 System.out.println("Invalid number");
             }
-            MessageHandler.sendMessageOverSocket(socket, "WHOELSESINCE");
-            MessageHandler.sendMessageOverSocket(socket, command);
-            String response = MessageHandler.receiveMessageOverSocket(socket);
-            if (response.equals("NONE")) {
+            String usersOnline = chatClient.whoelsesince(seconds).join();
+            if (usersOnline.isEmpty()) {
                 System.out.println("No other users online in that time frame");
                 return;
             }
-            System.out.println(response);
+            System.out.println(usersOnline);
         }
         catch (NumberFormatException e) {
             System.out.println("Invalid number. Please try again");
@@ -232,22 +181,19 @@ public class Client {
     }
 
     private void handleWhoelse() {
-        MessageHandler.sendMessageOverSocket(socket, "WHOELSE");
-        String response = MessageHandler.receiveMessageOverSocket(socket);
-        if (response.equals("NONE")) {
+        String usersOnline = chatClient.whoelse().join();
+        if (usersOnline.isEmpty()) {
             System.out.println("No other users online");
             return;
         }
-        System.out.println(response);
+        System.out.println(usersOnline);
     }
 
     private void handleBroadcast(String messsage) {
-        MessageHandler.sendMessageOverSocket(socket, "BROADCAST");
-        MessageHandler.sendMessageOverSocket(socket, messsage);
-        String response = MessageHandler.receiveMessageOverSocket(socket);
-        if (response.equals("OK")) {
+        Status response = chatClient.broadcast(messsage).join();
+        if (response == Status.OK) {
             System.out.println("Message sent to everyone");
-        } else if (response.equals("MESSAGE ONLY SENT TO SOME USERS")) {
+        } else if (response == Status.MESSAGE_ONLY_SENT_TO_SOME_USERS) {
             System.out.println("Message was only sent to some users");
         } else {
             System.out.println("No one online. Message not sent");
@@ -255,18 +201,15 @@ public class Client {
     }
 
     private void handleMessage(String destinationUser, String message) {
-        MessageHandler.sendMessageOverSocket(socket, "MESSAGE");
-        MessageHandler.sendMessageOverSocket(socket, destinationUser);
-        MessageHandler.sendMessageOverSocket(socket, message);
-        String response = MessageHandler.receiveMessageOverSocket(socket);
+        Status response = chatClient.message(destinationUser, message).join();
         switch (response) {
-            case "USER NOT FOUND":
+            case USER_NOT_FOUND:
                 System.out.println("Error: User does not exist.");
                 return;
-            case "DESTINATION USER IS SELF":
+            case DESTINATION_USER_IS_SELF:
                 System.out.println("Error: You can not send a message to yourself.");
                 return;
-            case "BLOCKED":
+            case BLOCKED:
                 System.out.println("Error: You can not send a message to this user.");
                 return;
             default:
@@ -275,60 +218,77 @@ public class Client {
     }
 
     private String promptCommand() {
-        Scanner scn = new Scanner(System.in);
-        return scn.nextLine();
+        return scanner.nextLine();
     }
 
-    private void handleLogin() {
-        String response = MessageHandler.receiveMessageOverSocket(socket);
-        assert (response.equals("USERNAME"));
-        MessageHandler.sendMessageOverSocket(socket, getUsername());
-        response = MessageHandler.receiveMessageOverSocket(socket);
-        if (response.equals("OK")) {
-            if (promptPassword()) {
-                diplaySuccessfulLogin();
-            } else {
-                response = MessageHandler.receiveMessageOverSocket(socket);
-                System.out.println("Invalid Password. Your account has been blocked. Please try again after " + response + " seconds");
+    private void handleLogin() throws IOException {
+        while (true) {
+            String response = chatClient.sendUsername(getUsername());
+            if (response.equals("OK")) {
+                response = promptPassword();
+                if (response.equals("OK")) {
+                    diplaySuccessfulLogin();
+                    return;
+                } else if (response.equals("ALREADY LOGGED IN")) {
+                    System.out.println("User is already logged in. Please try again later");
+                } else if (response.equals(CommandHandler.SERVER_BUSY)) {
+                    exitBusy();
+                } else {
+                    System.out.println("Invalid Password. Your account has been blocked. Please try again after " + chatClient.getLoginBlockSeconds() + " seconds");
+                    System.exit(1);
+                }
+            } else if (response.equals("ALREADY LOGGED IN")) {
+                // TODO: has not been tested
+                System.out.println("User is already logged in. Please try again later");
+            } else if (response.equals(CommandHandler.INVALID_USERNAME)) {
+                System.out.println("Usernames are 1 to " + CommandHandler.MAX_USERNAME_LENGTH + " characters long. Please try again");
+            } else if (response.equals("USER IS BLOCKED")) {
+                System.out.println("User is blocked from logging in. Please try again later");
                 System.exit(1);
+            } else { // New user
+                System.out.println("Response is: " + response);
+                assert(response.equals("NEW USER"));
+                if (createNewUser()) {
+                    return;
+                }
             }
-        } else if (response.equals("ALREADY LOGGED IN")) {
-            // TODO: has not been tested
-            System.out.println("User is already logged in. Please try again later");
-            handleLogin();
-        } else if (response.equals("USER IS BLOCKED")) {
-            System.out.println("User is blocked from logging in. Please try again later");
-            System.exit(1);
-        } else { // New user
-            System.out.println("Response is: " + response);
-            assert(response.equals("NEW USER"));
-            createNewUser();
         }
     }
 
-    private void createNewUser() {
+    /**
+     * Returns false when the username was taken first and the login should start over.
+     */
+    private boolean createNewUser() throws IOException {
         System.out.println("Create a a password");
-        MessageHandler.sendMessageOverSocket(socket, getPassword());
-        String response = MessageHandler.receiveMessageOverSocket(socket);
+        String response = chatClient.sendPassword(getPassword());
         if (response.equals("OK")) {
             diplaySuccessfulLogin();
+            return true;
+        } else if (response.equals(CommandHandler.SERVER_BUSY)) {
+            exitBusy();
         }
+        System.out.println("Username was taken. Please try again");
+        return false;
     }
 
+    private void exitBusy() {
+        System.out.println("The server is busy. Please try again later");
+        System.exit(1);
+    }
 
-    private boolean promptPassword() {
-        MessageHandler.sendMessageOverSocket(socket, getPassword());
-        String response = MessageHandler.receiveMessageOverSocket(socket);
-        while (!response.equals("MAX ATTEMPT")) {
-            if (response.equals("OK")) {
-                return true;
-            }
+
+    /**
+     * Returns the reply that ended the password exchange: "OK", "MAX ATTEMPT",
+     * "ALREADY LOGGED IN" or SERVER_BUSY.
+     */
+    private String promptPassword() throws IOException {
+        String response = chatClient.sendPassword(getPassword());
+        while (response.equals("Fail")) {
             System.out.printf("Invalid Password. ");
             System.out.println("Please try again");
-            MessageHandler.sendMessageOverSocket(socket, getPassword());
-            response = MessageHandler.receiveMessageOverSocket(socket);
+            response = chatClient.sendPassword(getPassword());
         }
-        return false;
+        return response;
     }
 
     private void diplaySuccessfulLogin() {
@@ -338,29 +298,14 @@ public class Client {
 
     private String getUsername() {
         System.out.printf("Username: ");
-        Scanner scn = new Scanner(System.in);
-        return scn.nextLine();
+        return scanner.nextLine();
     }
 
     private String getPassword() {
         System.out.printf("Password: ");
-        Scanner scn = new Scanner(System.in);
-        return scn.nextLine();
+        return scanner.nextLine();
     }
 
-    private void handleIncorrectPassword() {
-        System.out.println("Incorrect password: Please enter your password again");
-        MessageHandler.sendMessageOverSocket(socket, getPassword());
-        String response = MessageHandler.receiveMessageOverSocket(socket);
-        if (response.equals("Ok")) {
-            diplaySuccessfulLogin();
-        } else {
-            // TODO: Handle 3rd incorrect password attempt
-            System.out.println("Incorrect password: Please enter your password again");
-        }
-    }
-
-
     public static void main(String[] args) throws IOException {
         if (args.length != 1) {
             System.out.println(args.length);
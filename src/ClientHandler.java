@@ -1,311 +1,295 @@
 import java.io.*;
-import java.net.Socket;
-import java.time.LocalDateTime;
-import java.util.Map;
-
-public class ClientHandler extends Thread {
-    final Socket clientSocket;
-    private final int clientListenerPort;
-    private final Map<String, Profile> userProfilesMap;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+
+public class ClientHandler implements Runnable, PushChannel {
+    final SocketChannel clientSocket;
+    private final MessageHandler messageHandler;
+    private final CommandHandler commandHandler;
     private Profile clientProfile;
-    private final Thread timeoutThread;
-    private final int timeout;
-    private final int blockDuration;
-    private static final int MAX_PASSWORD_ATTEMPT = 3;
-
-
-    public ClientHandler(Socket clientSocket, int clientListenerPort, Map<String, Profile> userProfilesMap, int timeout, int blockDuration) {
-        this.clientSocket = clientSocket;
-        this.clientListenerPort = clientListenerPort;
-        this.userProfilesMap = userProfilesMap;
-        this.timeout = timeout;
-        this.timeoutThread = new Thread(this::setTimeoutThread);
-        this.blockDuration = blockDuration;
-    }
-
-    public void setClientProfile(Profile clientProfile) {
-        this.clientProfile = clientProfile;
-        clientProfile.bindListenerPort(clientListenerPort);
+    private IdleTimer.Handle idleTimeout;
+    private final HandshakeLimiter.Handshake handshake;
+    private final OutboundQueue outboundQueue;
+    private final Thread pushWriter;
+    private int protocolVersion = 1;
+    private boolean compression = false;
+
+
+    /**
+     * Pushes are written by a second thread made by threadBuilder, so the server decides whether
+     * a client costs platform threads or virtual threads.
+     */
+    public ClientHandler(MessageHandler messageHandler, HandshakeLimiter.Handshake handshake, CommandHandler commandHandler, Thread.Builder threadBuilder) {
+        this.messageHandler = messageHandler;
+        this.handshake = handshake;
+        this.clientSocket = messageHandler.getChannel();
+        this.commandHandler = commandHandler;
+        this.outboundQueue = commandHandler.createOutboundQueue();
+        this.pushWriter = threadBuilder.unstarted(this::writePushes);
     }
 
     @Override
     public void run() {
-        handleLogin();
-        this.timeoutThread.start();
-        handleActiveUser();
-        handleLogout();
+        commandHandler.getMetrics().connectionOpened();
+        try {
+            // Closed by the handshake deadline if the client never says HELLO
+            String hello = messageHandler.receiveMessage();
+            if (!handshake.complete()) {
+                return;
+            }
+            // The idle timeout takes over from the handshake deadline, so a client that stalls
+            // before logging in is closed too
+            this.idleTimeout = commandHandler.getIdleTimer().register(() -> closeConnection("idle"));
+            protocolVersion = BinaryProtocol.negotiateVersion(hello);
+            if (protocolVersion == BinaryProtocol.VERSION) {
+                compression = BinaryProtocol.negotiateCompression(hello);
+                reply(BinaryProtocol.helloReply(compression));
+                if (compression) {
+                    messageHandler.enableCompression();
+                }
+            }
+            if (handleLogin()) {
+                pushWriter.start();
+                commandHandler.sendKeptMessages(clientProfile);
+                if (protocolVersion == BinaryProtocol.VERSION) {
+                    handleActiveUserBinary();
+                } else {
+                    handleActiveUser();
+                }
+            }
+        } catch (EOFException e) {
+            // Client went away without logging out
+        } catch (AsynchronousCloseException e) {
+            // Closed by closeConnection or the handshake deadline
+        } catch (IOException | RuntimeException e) {
+            Log.error("Connection failed", e);
+        } finally {
+            handleLogout();
+        }
     }
 
     private void handleLogout() {
         try {
-            clientProfile.logout();
+            // Gives the permit back if the client left before finishing the handshake
+            handshake.complete();
+            if (idleTimeout != null) {
+                idleTimeout.cancel();
+            }
+            outboundQueue.close();
+            commandHandler.logout(clientProfile);
             clientSocket.close();
         } catch (IOException e) {
-            e.printStackTrace();
+            Log.error("Closing connection failed", e);
         }
+        commandHandler.getMetrics().connectionClosed();
     }
 
-    private void handleActiveUser() {
+    private void handleActiveUser() throws IOException {
         while(true) {
-            String response = MessageHandler.receiveMessageOverSocket(clientSocket);
-            this.timeoutThread.interrupt();
+            String response = messageHandler.receiveMessage();
+            idleTimeout.touch();
+            long start = System.nanoTime();
             switch (response) {
                 case "MESSAGE":
-                    message();
+                    String destinationUser = messageHandler.receiveMessage();
+                    String message = messageHandler.receiveMessage();
+                    reply(commandHandler.message(clientProfile, destinationUser, message).text);
                     break;
                 case "BROADCAST":
-                    broadcast();
+                    reply(commandHandler.broadcast(clientProfile, messageHandler.receiveMessage()).text);
                     break;
                 case "WHOELSE":
-                    whoelse();
+                    reply(CommandHandler.listReply(commandHandler.whoelse(clientProfile)));
                     break;
                 case "WHOELSESINCE":
-                    whoelsesince();
+                    reply(CommandHandler.listReply(commandHandler.whoelsesince(clientProfile, messageHandler.receiveMessage())));
                     break;
                 case "BLOCK":
-                    blockUser();
+                    reply(commandHandler.blockUser(clientProfile, messageHandler.receiveMessage()).text);
                     break;
                 case "UNBLOCK":
-                    unblockUser();
+                    reply(commandHandler.unblockUser(clientProfile, messageHandler.receiveMessage()).text);
                     break;
                 case "LOGOUT":
                     return;
                 default: // This will be invalid command
-                    System.out.println("User entered an invalid command. Please try again");
+                    Log.debug("User entered an invalid command. Please try again");
             }
+            commandHandler.getMetrics().commandDone(response, start);
         }
     }
 
-    private void blockUser() {
-        String user = MessageHandler.receiveMessageOverSocket(clientSocket);
-        synchronized (userProfilesMap) {
-            if (!userProfilesMap.containsKey(user)) {
-                MessageHandler.sendMessageOverSocket(clientSocket, "USER NOT FOUND");
-                return;
-            }
-            if (clientProfile.getUsername().equals(user)) {
-                MessageHandler.sendMessageOverSocket(clientSocket, "DESTINATION USER IS SELF");
-                return;
-            }
-            if (clientProfile.isBlocking(user)) {
-                MessageHandler.sendMessageOverSocket(clientSocket, "USER IS ALREADY BLOCKED");
+    private void handleActiveUserBinary() throws IOException {
+        while (true) {
+            ByteBuffer request = messageHandler.receiveFrame();
+            idleTimeout.touch();
+            if (BinaryProtocol.isLogout(request)) {
                 return;
             }
-            clientProfile.blockUser(user, userProfilesMap.get(user));
-            MessageHandler.sendMessageOverSocket(clientSocket, "OK");
+            BinaryProtocol.handle(commandHandler, clientProfile, request, reply -> messageHandler.sendFrame(reply, 0));
         }
     }
 
-    private void unblockUser() {
-        String user = MessageHandler.receiveMessageOverSocket(clientSocket);
-        synchronized (userProfilesMap) {
-            if (!userProfilesMap.containsKey(user)) {
-                MessageHandler.sendMessageOverSocket(clientSocket, "USER NOT FOUND");
-                return;
-            }
-            if (clientProfile.getUsername().equals(user)) {
-                MessageHandler.sendMessageOverSocket(clientSocket, "DESTINATION USER IS SELF");
-                return;
-            }
-            if (!clientProfile.isBlocking(user)) {
-                MessageHandler.sendMessageOverSocket(clientSocket, "USER IS NOT BOCKED");
-                return;
-            }
-            clientProfile.unblockUser(user);
-            MessageHandler.sendMessageOverSocket(clientSocket, "OK");
-        }
+    private void reply(String response) throws IOException {
+        messageHandler.sendMessage(response);
     }
 
-    private void whoelsesince() {
-        String response = MessageHandler.receiveMessageOverSocket(clientSocket);
-        int seconds = Integer.parseInt(response);
-        String usersOnline = getAllUsersOnlineWithinTimeframe(seconds);
-        if (usersOnline.isBlank()) {
-            MessageHandler.sendMessageOverSocket(clientSocket, "NONE");
-        }
-        MessageHandler.sendMessageOverSocket(clientSocket, usersOnline);
+    /**
+     * May be called from any thread. The frame is written by the push writer.
+     */
+    @Override
+    public boolean push(String message) {
+        return push(new PushMessage(message));
     }
 
-    private void whoelse() {
-        String usersOnline = getAllUsersOnline();
-        if (usersOnline.isBlank()) {
-            MessageHandler.sendMessageOverSocket(clientSocket, "NONE");
-            return;
+    @Override
+    public boolean push(PushMessage message) {
+        if (!clientSocket.isOpen()) {
+            return false;
+        }
+        switch (outboundQueue.offer(message.frame(compression))) {
+            case SPILL:
+                return commandHandler.spill(clientProfile, message.text());
+            case DISCONNECT:
+                closeConnection("slow");
+                return false;
+            default:
+                return true;
         }
-        MessageHandler.sendMessageOverSocket(clientSocket, usersOnline);
     }
 
-    private void broadcast() {
-        String message = MessageHandler.receiveMessageOverSocket(clientSocket);
-
-        boolean isMessageSentToEveryone = true;
-        boolean isMessageSentToAtLeastOneUser = false;
-        synchronized (userProfilesMap) {
-            for (String destUsername : userProfilesMap.keySet()) {
-                if (canBroadcastBeSentToUser(destUsername)) {
-                    userProfilesMap.get(destUsername).recieveMessage(new Message(message, clientProfile.getUsername(), destUsername).toString());
-                    isMessageSentToAtLeastOneUser = true;
-                } else {
-                    isMessageSentToEveryone = false;
+    @Override
+    public boolean pushBatch(List<String> messages) {
+        if (!clientSocket.isOpen()) {
+            return false;
+        }
+        if (protocolVersion < BinaryProtocol.VERSION) {
+            // One push per message, queued whatever the bound like a batch frame; spilling one
+            // would put it in the mailbox behind messages kept after it
+            for (String message : messages) {
+                if (!outboundQueue.add(new PushMessage(message).frame(compression))) {
+                    return false;
                 }
             }
+            return true;
         }
-        if (isMessageSentToEveryone) {
-            MessageHandler.sendMessageOverSocket(clientSocket, "OK");
-        } else if (isMessageSentToAtLeastOneUser) {
-            MessageHandler.sendMessageOverSocket(clientSocket, "MESSAGE ONLY SENT TO SOME USERS");
-        } else {
-            MessageHandler.sendMessageOverSocket(clientSocket, "MESSAGE NOT SENT");
-        }
+        return outboundQueue.add(MessageHandler.encodeFrame(BinaryProtocol.batch(messages), MessageHandler.PUSH_FLAG | MessageHandler.BATCH_FLAG, compression));
     }
 
-    private boolean canBroadcastBeSentToUser (String destUsername) {
-        synchronized (userProfilesMap) {
-            Profile destProfile = userProfilesMap.get(destUsername);
-            boolean isUserSelf = destUsername.equals(clientProfile.getUsername());
-            boolean isSenderBeingBlocked = destProfile.isBlocking(clientProfile.getUsername());
-            boolean isDestUserLoggedIn = destProfile.isLoggedIn();
-            return (!isUserSelf) && (!isSenderBeingBlocked) && (isDestUserLoggedIn);
-        }
+    @Override
+    public long backlogBytes() {
+        return outboundQueue.bytes();
     }
 
-    private void message() {
-        String destinationUser = MessageHandler.receiveMessageOverSocket(clientSocket);
-        String message = MessageHandler.receiveMessageOverSocket(clientSocket);
-
-        if (!userProfilesMap.containsKey(destinationUser)) {
-            MessageHandler.sendMessageOverSocket(clientSocket, "USER NOT FOUND");
-            return;
-        } else if (clientProfile.getUsername().equals(destinationUser)) {
-            MessageHandler.sendMessageOverSocket(clientSocket, "DESTINATION USER IS SELF");
-            return;
-        }
-
-        // Check if destination user is blocking source user
-        Profile destinationUserProfile = userProfilesMap.get(destinationUser);
-        if (destinationUserProfile.isBlocking(clientProfile.getUsername())) {
-            MessageHandler.sendMessageOverSocket(clientSocket, "BLOCKED");
-            return;
+    private void writePushes() {
+        try {
+            ByteBuffer frame;
+            while ((frame = outboundQueue.take()) != null) {
+                messageHandler.sendEncodedFrame(frame);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            closeConnection("broken");
         }
-
-        MessageHandler.sendMessageOverSocket(clientSocket, "OK");
-        sendMessage(new Message(message, clientProfile.getUsername(), destinationUser));
-    }
-
-    private void sendMessage(Message message) {
-        userProfilesMap.get(message.receiver).recieveMessage(message.toString());
     }
 
-    public void handleLogin() {
-        // Get username from client
-        MessageHandler.sendMessageOverSocket(clientSocket, "USERNAME");
-        String username = MessageHandler.receiveMessageOverSocket(clientSocket);
-        if (isValidUsername(username)) {
-            if (isUserLoggedIn(username)) {
-                MessageHandler.sendMessageOverSocket(clientSocket, "ALREADY LOGGED IN");
-                handleLogin();
+    /**
+     * Runs the username / password exchange. Returns true once the client is logged in.
+     */
+    public boolean handleLogin() throws IOException {
+        while (true) {
+            // Get username from client
+            reply("USERNAME");
+            String username = messageHandler.receiveMessage();
+            idleTimeout.touch();
+            String response = commandHandler.checkUsername(username);
+            reply(response);
+            if (response.startsWith(CommandHandler.MOVED)) {
+                return false;
             }
-            // Is user blocked from loggin in
-            if (isUserPreventedFromLoggingIn(userProfilesMap.get(username))) {
-                MessageHandler.sendMessageOverSocket(clientSocket, "USER IS BLOCKED");
-                return;
-            }
-            MessageHandler.sendMessageOverSocket(clientSocket, "OK");
-            int count = 0;
-            while (count < MAX_PASSWORD_ATTEMPT) {
-                if (authenticatePassword(username)) {
-                    break;
-                }
-                count++;
-                if (count < MAX_PASSWORD_ATTEMPT) {
-                    MessageHandler.sendMessageOverSocket(clientSocket, "Fail");
-                }
-            }
-            if (count < MAX_PASSWORD_ATTEMPT) {
-                userProfilesMap.get(username).login();
-                setClientProfile(userProfilesMap.get(username));
-            } else {
-                userProfilesMap.get(username).blockLogin(this.blockDuration);
-                MessageHandler.sendMessageOverSocket(clientSocket, "MAX ATTEMPT");
-                MessageHandler.sendMessageOverSocket(clientSocket, Integer.toString(this.timeout));
-
-                System.out.println("User has reached max password attempts");
+            switch (response) {
+                case "ALREADY LOGGED IN":
+                case CommandHandler.INVALID_USERNAME:
+                    continue;
+                case "USER IS BLOCKED":
+                    return false;
+                default:
+                    String result = response.equals("NEW USER") ? createNewUser(username) : authenticatePassword(username);
+                    switch (result) {
+                        case "OK":
+                            return true;
+                        case "ALREADY LOGGED IN":
+                            continue;
+                        default:
+                            return false;
+                    }
             }
-        } else {
-            createNewUser(username);
         }
-        System.out.println("New Login: " + username + " is now logged in");
-    }
-
-    private boolean isUserPreventedFromLoggingIn(Profile profile) {
-        return profile.getIsLoginBlocked();
-    }
-
-    private synchronized boolean isUserLoggedIn(String username) {
-        return userProfilesMap.get(username).isLoggedIn();
-    }
-
-    private void createNewUser(String username) {
-        MessageHandler.sendMessageOverSocket(clientSocket, "NEW USER");
-        String password = MessageHandler.receiveMessageOverSocket(clientSocket);
-        Profile newUser = new Profile(username, password);
-        userProfilesMap.put(username, newUser);
-        newUser.login();
-        setClientProfile(newUser);
-        MessageHandler.sendMessageOverSocket(clientSocket, "OK");
     }
 
-    private boolean authenticatePassword(String username) {
-        String response = MessageHandler.receiveMessageOverSocket(clientSocket);
-        if (checkValidPassword(username, response)) {
-            MessageHandler.sendMessageOverSocket(clientSocket, "Ok");
-            return true;
-        }
-        return false;
-    }
-
-    private synchronized boolean isValidUsername(String username) {
-        return userProfilesMap.containsKey(username);
-    }
-
-    private synchronized boolean checkValidPassword(String username, String passwordAttempt) {
-        Profile profile = userProfilesMap.get(username);
-        return profile.isValidPassword(passwordAttempt);
-
-    }
-
-    private synchronized String getAllUsersOnline() {
-        StringBuilder usersOnline = new StringBuilder();
-        for (String destUsername : userProfilesMap.keySet()) {
-            if ((!destUsername.equals(clientProfile.getUsername())) && userProfilesMap.get(destUsername).isLoggedIn()) {
-                usersOnline.append(destUsername).append(System.lineSeparator());
+    /**
+     * Returns the final reply: "OK", "ALREADY LOGGED IN" when another connection logged in to the
+     * account first, "MAX ATTEMPT" or SERVER_BUSY.
+     */
+    private String authenticatePassword(String username) throws IOException {
+        int count = 0;
+        while (count < CommandHandler.MAX_PASSWORD_ATTEMPT) {
+            String passwordAttempt = messageHandler.receiveMessage();
+            idleTimeout.touch();
+            CommandHandler.PasswordCheck check = commandHandler.checkPassword(username, passwordAttempt);
+            if (check == CommandHandler.PasswordCheck.BUSY) {
+                reply(CommandHandler.SERVER_BUSY);
+                return CommandHandler.SERVER_BUSY;
+            }
+            if (check == CommandHandler.PasswordCheck.VALID) {
+                this.clientProfile = commandHandler.login(username, this);
+                String response = clientProfile != null ? "OK" : "ALREADY LOGGED IN";
+                reply(response);
+                return response;
+            }
+            count++;
+            if (count < CommandHandler.MAX_PASSWORD_ATTEMPT) {
+                reply("Fail");
             }
         }
-        return usersOnline.toString();
+        commandHandler.blockLogin(username);
+        reply("MAX ATTEMPT");
+        reply(Integer.toString(commandHandler.getBlockDuration()));
+        return "MAX ATTEMPT";
     }
 
-    private String getAllUsersOnlineWithinTimeframe(int seconds) {
-        StringBuilder usersOnlineWithin = new StringBuilder();
-        LocalDateTime minBound = LocalDateTime.now().minusSeconds(seconds);
-        synchronized(userProfilesMap) {
-            for (String destUsername : userProfilesMap.keySet()) {
-                if ((!destUsername.equals(clientProfile.getUsername())) && userProfilesMap.get(destUsername).loggedInWithinTimeframe(minBound)) {
-                    usersOnlineWithin.append(destUsername).append(System.lineSeparator());
-                }
-            }
+    /**
+     * Returns the reply sent: "OK", "ALREADY LOGGED IN" when another connection registered the
+     * username first, or SERVER_BUSY.
+     */
+    private String createNewUser(String username) throws IOException {
+        String password = messageHandler.receiveMessage();
+        idleTimeout.touch();
+        String passwordHash = commandHandler.hashPassword(password);
+        String response;
+        if (passwordHash == null) {
+            response = CommandHandler.SERVER_BUSY;
+        } else {
+            this.clientProfile = commandHandler.createNewUser(username, passwordHash, this);
+            response = clientProfile != null ? "OK" : "ALREADY LOGGED IN";
         }
-        return usersOnlineWithin.toString();
+        reply(response);
+        return response;
     }
 
-    private void setTimeoutThread() {
-        while(true) {
-            try {
-                Thread.sleep(this.timeout);
-                this.clientProfile.recieveMessage("LGT");
-                return;
-            } catch (InterruptedException e) {
-                System.out.println("Interupt");
-            }
+    /**
+     * Used by the idle timer and the slow consumer policy. Closing the socket ends the blocked
+     * read in run, which then logs the user out as for any other disconnect.
+     */
+    private void closeConnection(String reason) {
+        Log.info("Closing " + reason + " connection");
+        try {
+            clientSocket.close();
+        } catch (IOException e) {
+            Log.error("Closing connection failed", e);
         }
     }
 
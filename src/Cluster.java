@@ -0,0 +1,531 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Several server nodes sharing the users between them. Every user lives on one node, picked by
+ * a HashRing over the username: their profile, block list and mailbox are kept there and they
+ * log in there. A node that is asked to log in someone else's user answers with the address of
+ * the right node instead.
+ *
+ * Commands that reach users on other nodes go over an internal link between the nodes: a message
+ * is handed to the recipient's node, a broadcast to every node, and whoelse / whoelsesince ask
+ * every node for its part of the list. Link frames use the client framing; a request is an
+ * opcode, a correlation id and text fields as in BinaryProtocol, a reply is the correlation id,
+ * a byte that is 1 on the last frame of the reply, and the reply's fields. User lists come back
+ * in several frames of at most CommandHandler.USER_LIST_CHUNK_SIZE users.
+ *
+ * Set with -Dcluster.nodes=host:client_port:link_port,... listing every node in the same order
+ * on each of them, and -Dcluster.self=this node's index in that list. The link port is bound on
+ * the node's host, or on the address given by -Dcluster.bind, so it can be kept to a private
+ * interface while clients connect on another.
+ *
+ * Every node must be started with the same -Dcluster.secret. The accepting node opens a link by
+ * sending a random challenge, and the connecting node answers with its HMAC-SHA256 under the
+ * secret. A link that answers wrongly, or not within CALL_TIMEOUT_MILLIS, is closed before any
+ * request is read, and a recorded answer is no use against the next challenge.
+ */
+public class Cluster {
+    private static final byte MESSAGE = 1;
+    private static final byte BROADCAST = 2;
+    private static final byte WHOELSE = 3;
+    private static final byte WHOELSESINCE = 4;
+    private static final byte EXISTS = 5;
+    private static final long CALL_TIMEOUT_MILLIS = 5000;
+    private static final int CHALLENGE_BYTES = 32;
+    private static final String HMAC = "HmacSHA256";
+    private static final SecureRandom random = new SecureRandom();
+
+    public record Node(String host, int clientPort, int linkPort) {
+        public String clientAddress() {
+            return host + ":" + clientPort;
+        }
+    }
+
+    public record LoginTime(long millis, String username) {
+    }
+
+    /**
+     * Recipients and other users counted by the nodes that answered. Complete is false when a
+     * node could not be reached, so there may have been users it did not count.
+     */
+    public record BroadcastResult(int recipients, int otherUsers, boolean complete) {
+    }
+
+    private final List<Node> nodes;
+    private final int self;
+    private final HashRing ring;
+    private final Peer[] peers;
+    private final byte[] secret;
+    private final String bindAddress;
+    private CommandHandler commandHandler;
+    private UserRegistry userRegistry;
+
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * bindAddress is where the link port listens; null binds it on this node's host.
+     */
+    public Cluster(List<Node> nodes, int self, byte[] secret, String bindAddress) {
+        this.nodes = List.copyOf(nodes);
+        this.self = self;
+        this.ring = new HashRing(nodes.size());
+        this.secret = secret.clone();
+        this.bindAddress = bindAddress != null ? bindAddress : nodes.get(self).host;
+        this.peers = new Peer[nodes.size()];
+        for (int i = 0; i < peers.length; i++) {
+            peers[i] = i == self ? null : new Peer(nodes.get(i), this.secret);
+        }
+    }
+
+    /**
+     * Returns null when -Dcluster.nodes is not set and the server runs on its own. Refuses to
+     * start a cluster without -Dcluster.secret, as the link port would take requests from anyone.
+     */
+    public static Cluster fromSystemProperties() {
+        String list = System.getProperty("cluster.nodes");
+        if (list == null || list.isBlank()) {
+            return null;
+        }
+        List<Node> nodes = new ArrayList<>();
+        for (String entry : list.split(",")) {
+            String[] parts = entry.trim().split(":");
+            nodes.add(new Node(parts[0], Integer.parseInt(parts[1]), Integer.parseInt(parts[2])));
+        }
+        int self = Integer.getInteger("cluster.self", 0);
+        if (self < 0 || self >= nodes.size()) {
+            throw new IllegalArgumentException("cluster.self " + self + " is not one of the " + nodes.size() + " nodes");
+        }
+        String secret = System.getProperty("cluster.secret");
+        if (secret == null || secret.isBlank()) {
+            throw new IllegalArgumentException("cluster.secret must be set to the same value on every node");
+        }
+        return new Cluster(nodes, self, secret.getBytes(StandardCharsets.UTF_8), System.getProperty("cluster.bind"));
+    }
+
+    public boolean isLocal(String username) {
+        return ring.nodeFor(username) == self;
+    }
+
+    public Node nodeFor(String username) {
+        return nodes.get(ring.nodeFor(username));
+    }
+
+    public Node getSelf() {
+        return nodes.get(self);
+    }
+
+    public int size() {
+        return nodes.size();
+    }
+
+    // ===== Calls to other nodes =====
+
+    /**
+     * Hands a formatted message to the node the recipient lives on.
+     */
+    public Status message(String sender, String destinationUser, String text) throws IOException {
+        List<ByteBuffer> reply = await(peers[ring.nodeFor(destinationUser)].call(MESSAGE, sender, destinationUser, text));
+        return Status.fromCode(reply.get(0).get());
+    }
+
+    /**
+     * Hands a formatted broadcast to every other node, which deliver it to their own users.
+     */
+    public BroadcastResult broadcast(String sender, String text) {
+        List<CompletableFuture<List<ByteBuffer>>> replies = callOthers(BROADCAST, sender, text);
+        int recipients = 0;
+        int otherUsers = 0;
+        boolean complete = true;
+        for (CompletableFuture<List<ByteBuffer>> reply : replies) {
+            try {
+                ByteBuffer counts = await(reply).get(0);
+                recipients += counts.getInt();
+                otherUsers += counts.getInt();
+            } catch (IOException e) {
+                complete = false;
+            }
+        }
+        return new BroadcastResult(recipients, otherUsers, complete);
+    }
+
+    /**
+     * The users online on every other node that answered.
+     */
+    public List<String> whoelse() {
+        List<String> users = new ArrayList<>();
+        for (CompletableFuture<List<ByteBuffer>> reply : callOthers(WHOELSE)) {
+            try {
+                for (ByteBuffer chunk : await(reply)) {
+                    for (int count = chunk.getInt(); count > 0; count--) {
+                        users.add(BinaryProtocol.getString(chunk));
+                    }
+                }
+            } catch (IOException e) {
+                // Left out of the list
+            }
+        }
+        return users;
+    }
+
+    /**
+     * The users on every other node that answered whose latest login was after the given epoch
+     * millis, in no particular order.
+     */
+    public List<LoginTime> whoelsesince(long millis) {
+        List<LoginTime> users = new ArrayList<>();
+        for (CompletableFuture<List<ByteBuffer>> reply : callOthers(WHOELSESINCE, Long.toString(millis))) {
+            try {
+                for (ByteBuffer chunk : await(reply)) {
+                    for (int count = chunk.getInt(); count > 0; count--) {
+                        long loginMillis = chunk.getLong();
+                        users.add(new LoginTime(loginMillis, BinaryProtocol.getString(chunk)));
+                    }
+                }
+            } catch (IOException e) {
+                // Left out of the list
+            }
+        }
+        return users;
+    }
+
+    public boolean exists(String username) throws IOException {
+        return await(peers[ring.nodeFor(username)].call(EXISTS, username)).get(0).get() != 0;
+    }
+
+    private List<CompletableFuture<List<ByteBuffer>>> callOthers(byte opcode, String... fields) {
+        List<CompletableFuture<List<ByteBuffer>>> replies = new ArrayList<>();
+        for (Peer peer : peers) {
+            if (peer != null) {
+                replies.add(peer.call(opcode, fields));
+            }
+        }
+        return replies;
+    }
+
+    private <T> T await(CompletableFuture<T> reply) throws IOException {
+        calls.increment();
+        try {
+            return reply.get();
+        } catch (ExecutionException e) {
+            failures.increment();
+            Throwable cause = e.getCause();
+            Log.warn("Cluster call failed: " + cause);
+            throw cause instanceof IOException io ? io : new IOException(cause);
+        } catch (InterruptedException e) {
+            failures.increment();
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for another node", e);
+        }
+    }
+
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * The link to one other node, opened on first use and again after it breaks. Calls from any
+     * number of threads share it, told apart by correlation id.
+     */
+    private static class Peer {
+        private final Node node;
+        private final byte[] secret;
+        private final Map<Integer, Call> pending = new ConcurrentHashMap<>();
+        private final AtomicInteger nextCorrelationId = new AtomicInteger();
+        // Held across the blocking connect, so not a monitor, which would pin a virtual thread caller
+        private final ReentrantLock connectLock = new ReentrantLock();
+        private MessageHandler link;
+
+        private static class Call {
+            // Only touched by the receive thread
+            final List<ByteBuffer> frames = new ArrayList<>();
+            final CompletableFuture<List<ByteBuffer>> reply = new CompletableFuture<>();
+            volatile MessageHandler sentOn;
+        }
+
+        Peer(Node node, byte[] secret) {
+            this.node = node;
+            this.secret = secret;
+        }
+
+        CompletableFuture<List<ByteBuffer>> call(byte opcode, String... fields) {
+            Call call = new Call();
+            int correlationId = nextCorrelationId.incrementAndGet();
+            pending.put(correlationId, call);
+            call.reply.whenComplete((frames, error) -> pending.remove(correlationId));
+            try {
+                call.sentOn = connect();
+                call.sentOn.sendFrame(BinaryProtocol.request(opcode, correlationId, fields), 0);
+            } catch (IOException e) {
+                call.reply.completeExceptionally(e);
+            }
+            return call.reply.orTimeout(CALL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        private MessageHandler connect() throws IOException {
+            connectLock.lock();
+            try {
+                if (link != null && link.getChannel().isOpen()) {
+                    return link;
+                }
+                SocketChannel channel = SocketChannel.open(new InetSocketAddress(node.host, node.linkPort));
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                MessageHandler opened = new MessageHandler(channel);
+                CompletableFuture<Void> answered = new CompletableFuture<>();
+                Thread thread = new Thread(() -> receive(opened, answered), "cluster-peer-" + node.linkPort);
+                thread.setDaemon(true);
+                thread.start();
+                try {
+                    answered.get(CALL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                } catch (ExecutionException | TimeoutException e) {
+                    channel.close();
+                    throw new IOException("No challenge from " + node.host + ":" + node.linkPort, e);
+                } catch (InterruptedException e) {
+                    channel.close();
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted connecting to " + node.host + ":" + node.linkPort, e);
+                }
+                link = opened;
+                return opened;
+            } finally {
+                connectLock.unlock();
+            }
+        }
+
+        /**
+         * Answers the other node's challenge, then completes answered and reads replies until the
+         * link breaks. A wrong answer shows up as the other node closing the link.
+         */
+        private void receive(MessageHandler opened, CompletableFuture<Void> answered) {
+            try {
+                opened.sendFrame(ByteBuffer.wrap(answer(secret, opened.receiveFrame())), 0);
+                answered.complete(null);
+                while (true) {
+                    ByteBuffer view = opened.receiveFrame();
+                    Call call = pending.get(view.getInt());
+                    boolean last = view.get() != 0;
+                    if (call == null) {
+                        continue;
+                    }
+                    call.frames.add(ByteBuffer.allocate(view.remaining()).put(view).flip());
+                    if (last) {
+                        call.reply.complete(call.frames);
+                    }
+                }
+            } catch (IOException e) {
+                // Broken or closed; the next call opens a new link
+                answered.completeExceptionally(e);
+            }
+            try {
+                opened.getChannel().close();
+            } catch (IOException e) {
+                Log.error("Closing cluster link failed", e);
+            }
+            IOException closed = new IOException("Link to " + node.host + ":" + node.linkPort + " closed");
+            for (Call call : pending.values()) {
+                if (call.sentOn == opened) {
+                    call.reply.completeExceptionally(closed);
+                }
+            }
+        }
+    }
+
+    // ===== Serving other nodes =====
+
+    /**
+     * Starts answering other nodes on this node's link port.
+     */
+    public void start(CommandHandler commandHandler, UserRegistry userRegistry) throws IOException {
+        this.commandHandler = commandHandler;
+        this.userRegistry = userRegistry;
+        Node node = getSelf();
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        server.bind(new InetSocketAddress(bindAddress, node.linkPort));
+        Thread acceptor = new Thread(() -> acceptLinks(server), "cluster-link");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Log.info("===== Node " + self + " of " + nodes.size() + ", cluster link on " + bindAddress + ":" + node.linkPort + " =====");
+    }
+
+    private void acceptLinks(ServerSocketChannel server) {
+        while (true) {
+            try {
+                SocketChannel channel = server.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                Thread.ofVirtual().start(() -> serveLink(new MessageHandler(channel)));
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                Log.error("Accepting a cluster link failed", e);
+            }
+        }
+    }
+
+    /**
+     * Nothing is read from the link until it has answered the challenge. After that each request
+     * runs on its own virtual thread, so a slow one does not hold up the rest. Requests from one
+     * session are never concurrent, since it waits for each reply.
+     */
+    private void serveLink(MessageHandler link) {
+        try {
+            SocketAddress remote = link.getChannel().getRemoteAddress();
+            if (!challenge(link)) {
+                Log.warn("===== Closed a cluster link from " + remote + " that did not answer the challenge =====");
+                link.getChannel().close();
+                return;
+            }
+            while (true) {
+                ByteBuffer view = link.receiveFrame();
+                ByteBuffer request = ByteBuffer.allocate(view.remaining()).put(view).flip();
+                Thread.ofVirtual().start(() -> handleRequest(link, request));
+            }
+        } catch (EOFException | AsynchronousCloseException e) {
+            // The other node went away
+        } catch (IOException e) {
+            Log.error("Cluster link failed", e);
+        }
+        try {
+            link.getChannel().close();
+        } catch (IOException e) {
+            Log.error("Closing cluster link failed", e);
+        }
+    }
+
+    /**
+     * Returns true once the other node has answered a fresh challenge correctly. The link is
+     * closed if no answer comes in time, which ends the wait for it.
+     */
+    private boolean challenge(MessageHandler link) throws IOException {
+        byte[] challenge = new byte[CHALLENGE_BYTES];
+        random.nextBytes(challenge);
+        link.sendFrame(ByteBuffer.wrap(challenge), 0);
+        AtomicBoolean answered = new AtomicBoolean(false);
+        CompletableFuture.delayedExecutor(CALL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).execute(() -> {
+            if (answered.compareAndSet(false, true)) {
+                try {
+                    link.getChannel().close();
+                } catch (IOException e) {
+                    Log.error("Closing cluster link failed", e);
+                }
+            }
+        });
+        ByteBuffer view = link.receiveFrame();
+        if (!answered.compareAndSet(false, true)) {
+            return false;
+        }
+        byte[] received = new byte[view.remaining()];
+        view.get(received);
+        return MessageDigest.isEqual(received, answer(secret, ByteBuffer.wrap(challenge)));
+    }
+
+    private static byte[] answer(byte[] secret, ByteBuffer challenge) {
+        try {
+            Mac mac = Mac.getInstance(HMAC);
+            mac.init(new SecretKeySpec(secret, HMAC));
+            mac.update(challenge);
+            return mac.doFinal();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(HMAC + " is not available", e);
+        }
+    }
+
+    private void handleRequest(MessageHandler link, ByteBuffer request) {
+        try {
+            byte opcode = request.get();
+            int correlationId = request.getInt();
+            switch (opcode) {
+                case MESSAGE -> {
+                    String sender = BinaryProtocol.getString(request);
+                    String destinationUser = BinaryProtocol.getString(request);
+                    Status status = commandHandler.deliverMessage(sender, destinationUser, BinaryProtocol.getString(request));
+                    reply(link, correlationId, true, ByteBuffer.allocate(1).put(status.code).flip());
+                }
+                case BROADCAST -> {
+                    String sender = BinaryProtocol.getString(request);
+                    BroadcastResult result = commandHandler.deliverBroadcast(sender, BinaryProtocol.getString(request));
+                    reply(link, correlationId, true, ByteBuffer.allocate(8).putInt(result.recipients).putInt(result.otherUsers).flip());
+                }
+                case WHOELSE -> {
+                    List<LoginTime> users = new ArrayList<>();
+                    for (Profile profile : userRegistry.onlineUsers()) {
+                        users.add(new LoginTime(0, profile.getUsername()));
+                    }
+                    replyUsers(link, correlationId, users, false);
+                }
+                case WHOELSESINCE -> {
+                    List<LoginTime> users = new ArrayList<>();
+                    for (Profile profile : userRegistry.loggedInSince(Long.parseLong(BinaryProtocol.getString(request)))) {
+                        users.add(new LoginTime(profile.getLastLoginMillis(), profile.getUsername()));
+                    }
+                    replyUsers(link, correlationId, users, true);
+                }
+                case EXISTS -> {
+                    boolean exists = userRegistry.contains(BinaryProtocol.getString(request));
+                    reply(link, correlationId, true, ByteBuffer.allocate(1).put((byte) (exists ? 1 : 0)).flip());
+                }
+                default -> Log.warn("Unknown cluster request " + opcode);
+            }
+        } catch (IOException | RuntimeException e) {
+            Log.error("Answering another node failed", e);
+        }
+    }
+
+    private static void reply(MessageHandler link, int correlationId, boolean last, ByteBuffer fields) throws IOException {
+        ByteBuffer reply = ByteBuffer.allocate(5 + fields.remaining()).putInt(correlationId).put((byte) (last ? 1 : 0)).put(fields).flip();
+        link.sendFrame(reply, 0);
+    }
+
+    private static void replyUsers(MessageHandler link, int correlationId, List<LoginTime> users, boolean withMillis) throws IOException {
+        int sent = 0;
+        do {
+            List<LoginTime> chunk = users.subList(sent, Math.min(users.size(), sent + CommandHandler.USER_LIST_CHUNK_SIZE));
+            sent += chunk.size();
+            List<byte[]> names = new ArrayList<>(chunk.size());
+            int length = 4;
+            for (LoginTime user : chunk) {
+                byte[] name = user.username.getBytes(StandardCharsets.UTF_8);
+                names.add(name);
+                length += (withMillis ? 8 : 0) + 4 + name.length;
+            }
+            ByteBuffer fields = ByteBuffer.allocate(length).putInt(chunk.size());
+            for (int i = 0; i < chunk.size(); i++) {
+                if (withMillis) {
+                    fields.putLong(chunk.get(i).millis);
+                }
+                fields.putInt(names.get(i).length).put(names.get(i));
+            }
+            reply(link, correlationId, sent == users.size(), fields.flip());
+        } while (sent < users.size());
+    }
+}
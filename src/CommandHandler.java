@@ -1,5 +1,493 @@
-import java.net.Socket;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.Supplier;
 
+/**
+ * Command logic shared by every connection style. Each method takes the already
+ * decoded arguments of a command and returns the reply that should be sent back,
+ * so the blocking {@link ClientHandler} and the selector based {@link NioServer}
+ * only have to deal with moving frames.
+ */
 public class CommandHandler {
+    public static final int MAX_PASSWORD_ATTEMPT = 3;
+    // Users per chunk when a user list is streamed back
+    public static final int USER_LIST_CHUNK_SIZE = 512;
+    // Start of the reply to a username that lives on another node, followed by that node's host:port
+    public static final String MOVED = "MOVED ";
+    // Sent instead of a password reply when the auth queue is full; the connection is closed after it
+    public static final String SERVER_BUSY = "SERVER BUSY";
+    // Longest username in characters; anything longer is answered INVALID_USERNAME and asked again
+    public static final int MAX_USERNAME_LENGTH = 64;
+    public static final String INVALID_USERNAME = "INVALID USERNAME";
+    // Longest MESSAGE or BROADCAST body in UTF-8 bytes, leaving room in a push frame for the date and sender
+    public static final int MAX_MESSAGE_BYTES = MessageHandler.MAX_FRAME_LENGTH - 1024;
+    // Longest version 1 user list reply in UTF-8 bytes, leaving room for the line saying how many were left out
+    private static final int MAX_LIST_REPLY_BYTES = MessageHandler.MAX_FRAME_LENGTH - 64;
 
+    public enum PasswordCheck {
+        VALID,
+        INVALID,
+        BUSY
+    }
+
+    /**
+     * Receives a user list a chunk at a time, each chunk one username per line. The last chunk
+     * may be empty.
+     */
+    public interface UserListSink {
+        void chunk(String users, boolean last) throws IOException;
+    }
+
+    private final UserRegistry userRegistry;
+    private final DeliveryExecutor deliveryExecutor;
+    private final MailboxDrainer mailboxDrainer;
+    private final IdleTimer idleTimer;
+    private final OutboundQueues outboundQueues;
+    private final ServerMetrics metrics;
+    // Null to hash passwords on the caller's thread
+    private final AuthExecutor authExecutor;
+    // Null when the server runs on its own
+    private final Cluster cluster;
+    private final int blockDuration;
+
+    public CommandHandler(UserRegistry userRegistry, DeliveryExecutor deliveryExecutor, MailboxDrainer mailboxDrainer, IdleTimer idleTimer,
+                          OutboundQueues outboundQueues, int blockDuration) {
+        this(userRegistry, deliveryExecutor, mailboxDrainer, idleTimer, outboundQueues, new ServerMetrics(new Metrics(Server.METRICS_PREFIX)),
+                null, null, blockDuration);
+    }
+
+    public CommandHandler(UserRegistry userRegistry, DeliveryExecutor deliveryExecutor, MailboxDrainer mailboxDrainer, IdleTimer idleTimer,
+                          OutboundQueues outboundQueues, ServerMetrics metrics, AuthExecutor authExecutor, Cluster cluster, int blockDuration) {
+        this.userRegistry = userRegistry;
+        this.deliveryExecutor = deliveryExecutor;
+        this.mailboxDrainer = mailboxDrainer;
+        this.idleTimer = idleTimer;
+        this.outboundQueues = outboundQueues;
+        this.metrics = metrics;
+        this.authExecutor = authExecutor;
+        this.cluster = cluster;
+        this.blockDuration = blockDuration;
+    }
+
+    public DeliveryExecutor getDeliveryExecutor() {
+        return deliveryExecutor;
+    }
+
+    public IdleTimer getIdleTimer() {
+        return idleTimer;
+    }
+
+    public ServerMetrics getMetrics() {
+        return metrics;
+    }
+
+    public OutboundQueue createOutboundQueue() {
+        return outboundQueues.create();
+    }
+
+    public int getBlockDuration() {
+        return blockDuration;
+    }
+
+    /**
+     * True when commands may have to wait on other nodes.
+     */
+    public boolean isClustered() {
+        return cluster != null;
+    }
+
+    // ===== Login =====
+
+    /**
+     * Returns the reply to a username: "OK" when a password should follow,
+     * "NEW USER" when a password for a new account should follow,
+     * "ALREADY LOGGED IN" / "USER IS BLOCKED" when the login can not continue, INVALID_USERNAME
+     * for an empty or overlong name, or MOVED and an address when the user lives on another node
+     * of a cluster.
+     */
+    public String checkUsername(String username) {
+        if (username.isEmpty() || username.length() > MAX_USERNAME_LENGTH) {
+            return INVALID_USERNAME;
+        }
+        if (cluster != null && !cluster.isLocal(username)) {
+            return MOVED + cluster.nodeFor(username).clientAddress();
+        }
+        Profile profile = userRegistry.get(username);
+        if (profile == null) {
+            return "NEW USER";
+        }
+        if (profile.isLoggedIn()) {
+            return "ALREADY LOGGED IN";
+        }
+        if (profile.getIsLoginBlocked()) {
+            return "USER IS BLOCKED";
+        }
+        return "OK";
+    }
+
+    /**
+     * Checks the password on the auth pool. A plain or outdated hash is replaced once the password
+     * matches it. Blocks the caller, so it is never run on an event loop.
+     */
+    public PasswordCheck checkPassword(String username, String passwordAttempt) {
+        Profile profile = userRegistry.get(username);
+        Boolean valid = authenticate(() -> {
+            String stored = profile.getPasswordHash();
+            if (!PasswordHash.verify(stored, passwordAttempt)) {
+                return false;
+            }
+            if (PasswordHash.needsRehash(stored)) {
+                userRegistry.changePasswordHash(profile, PasswordHash.hash(passwordAttempt));
+            }
+            return true;
+        });
+        if (valid == null) {
+            return PasswordCheck.BUSY;
+        }
+        return valid ? PasswordCheck.VALID : PasswordCheck.INVALID;
+    }
+
+    /**
+     * Hashes a new user's password on the auth pool. Returns null when the pool is too busy.
+     */
+    public String hashPassword(String password) {
+        return authenticate(() -> PasswordHash.hash(password));
+    }
+
+    private <T> T authenticate(Supplier<T> task) {
+        return authExecutor != null ? authExecutor.call(task) : task.get();
+    }
+
+    public void blockLogin(String username) {
+        userRegistry.get(username).blockLogin(blockDuration);
+        Log.info(username + " has reached max password attempts");
+    }
+
+    /**
+     * Returns null when another connection logged in to the account since checkUsername.
+     */
+    public Profile login(String username, PushChannel pushChannel) {
+        Profile profile = userRegistry.login(username, pushChannel);
+        if (profile != null) {
+            Log.info("New Login: " + username + " is now logged in");
+        }
+        return profile;
+    }
+
+    /**
+     * Takes the hash from hashPassword. Returns null when another connection registered the
+     * username since checkUsername.
+     */
+    public Profile createNewUser(String username, String passwordHash, PushChannel pushChannel) {
+        Profile newUser = userRegistry.registerAndLogin(username, passwordHash, pushChannel);
+        if (newUser != null) {
+            Log.info("New Login: " + username + " is now logged in");
+        }
+        return newUser;
+    }
+
+    /**
+     * Starts sending the messages kept while the user was away. Called once the login reply has
+     * been sent, so it always reaches the client first.
+     */
+    public void sendKeptMessages(Profile clientProfile) {
+        mailboxDrainer.start(clientProfile);
+    }
+
+    /**
+     * Called by a connection whose outbound queue had no room for a push under the spill policy.
+     * The message goes to the recipient's mailbox and is sent once their queue has drained.
+     * Returns false when there is no logged in profile to keep it for.
+     */
+    public boolean spill(Profile recipient, String message) {
+        if (recipient == null) {
+            return false;
+        }
+        if (recipient.spillMessage(message)) {
+            mailboxDrainer.start(recipient);
+        }
+        return true;
+    }
+
+    public void logout(Profile clientProfile) {
+        if (clientProfile != null) {
+            userRegistry.logout(clientProfile);
+        }
+    }
+
+    // ===== Commands =====
+
+    public Status message(Profile clientProfile, String destinationUser, String message) {
+        if (clientProfile.getUsername().equals(destinationUser)) {
+            return Status.DESTINATION_USER_IS_SELF;
+        }
+        if (tooLong(message)) {
+            return Status.MESSAGE_NOT_SENT;
+        }
+        String text = new Message(message, clientProfile.getUsername(), destinationUser).toString();
+        if (cluster != null && !cluster.isLocal(destinationUser)) {
+            try {
+                return cluster.message(clientProfile.getUsername(), destinationUser, text);
+            } catch (IOException e) {
+                return Status.MESSAGE_NOT_SENT;
+            }
+        }
+        return deliverMessage(clientProfile.getUsername(), destinationUser, text);
+    }
+
+    /**
+     * Hands an already formatted message to a user who lives on this node. Also called for
+     * messages sent from other nodes of a cluster.
+     */
+    public Status deliverMessage(String sender, String destinationUser, String text) {
+        Profile destinationUserProfile = userRegistry.get(destinationUser);
+        if (destinationUserProfile == null) {
+            return Status.USER_NOT_FOUND;
+        }
+
+        // Check if destination user is blocking source user
+        if (userRegistry.isBlocking(destinationUserProfile, sender)) {
+            return Status.BLOCKED;
+        }
+
+        destinationUserProfile.recieveMessage(text);
+        return Status.OK;
+    }
+
+    /**
+     * The text is formatted once and shared by every recipient, on this node and the others.
+     */
+    public Status broadcast(Profile clientProfile, String message) {
+        if (tooLong(message)) {
+            return Status.MESSAGE_NOT_SENT;
+        }
+        String text = Message.broadcast(message, clientProfile.getUsername()).toString();
+        Cluster.BroadcastResult result = deliverBroadcast(clientProfile.getUsername(), text);
+        int recipients = result.recipients();
+        int otherUsers = result.otherUsers();
+        if (cluster != null) {
+            Cluster.BroadcastResult others = cluster.broadcast(clientProfile.getUsername(), text);
+            recipients += others.recipients();
+            // Users on a node that did not answer were not sent it
+            otherUsers += others.otherUsers() + (others.complete() ? 0 : 1);
+        }
+        metrics.fanOut(recipients);
+        if (recipients == 0) {
+            return Status.MESSAGE_NOT_SENT;
+        } else if (recipients == otherUsers) {
+            return Status.OK;
+        }
+        return Status.MESSAGE_ONLY_SENT_TO_SOME_USERS;
+    }
+
+    /**
+     * A body that would not fit in one push frame once formatted. Checked on the node the sender
+     * is on, so text arriving from other nodes is never too long.
+     */
+    private static boolean tooLong(String message) {
+        return (long) message.length() * 3 > MAX_MESSAGE_BYTES
+                && message.getBytes(StandardCharsets.UTF_8).length > MAX_MESSAGE_BYTES;
+    }
+
+    /**
+     * Picks the recipients among the users of this node, then queues the deliveries so the reply
+     * does not wait on any recipient's connection. Also called for broadcasts from other nodes.
+     */
+    public Cluster.BroadcastResult deliverBroadcast(String sender, String text) {
+        List<Profile> recipients = new ArrayList<>();
+        // Encoded, and compressed where asked for, once for every recipient
+        PushMessage message = new PushMessage(text);
+        // Only users online can be sent it, but every other registered user counts towards the status
+        int otherUsers = userRegistry.size() - (userRegistry.contains(sender) ? 1 : 0);
+        userRegistry.forEachBroadcastRecipient(sender, recipients::add);
+        for (Profile destProfile : recipients) {
+            deliveryExecutor.deliver(destProfile, message);
+        }
+        return new Cluster.BroadcastResult(recipients.size(), otherUsers, true);
+    }
+
+    /**
+     * Returns the other users online, one per line, or an empty string when there are none.
+     */
+    public String whoelse(Profile clientProfile) {
+        return collect(sink -> whoelse(clientProfile, sink));
+    }
+
+    public void whoelse(Profile clientProfile, UserListSink sink) throws IOException {
+        UserListWriter users = new UserListWriter(clientProfile, sink);
+        for (Profile profile : userRegistry.onlineUsers()) {
+            users.add(profile);
+        }
+        if (cluster != null) {
+            for (String username : cluster.whoelse()) {
+                users.add(username);
+            }
+        }
+        users.finish();
+    }
+
+    public String whoelsesince(Profile clientProfile, int seconds) {
+        return collect(sink -> whoelsesince(clientProfile, seconds, sink));
+    }
+
+    public String whoelsesince(Profile clientProfile, String secondsArgument) {
+        try {
+            return whoelsesince(clientProfile, Integer.parseInt(secondsArgument));
+        } catch (NumberFormatException e) {
+            return "";
+        }
+    }
+
+    /**
+     * Streams the other users whose latest login falls within the last given seconds, oldest
+     * login first.
+     */
+    public void whoelsesince(Profile clientProfile, int seconds, UserListSink sink) throws IOException {
+        long since = System.currentTimeMillis() - seconds * 1000L;
+        UserListWriter users = new UserListWriter(clientProfile, sink);
+        if (cluster == null) {
+            for (Profile profile : userRegistry.loggedInSince(since)) {
+                users.add(profile);
+            }
+            users.finish();
+            return;
+        }
+        // Each node's part is in login order, the parts are merged by sorting
+        List<Cluster.LoginTime> logins = new ArrayList<>(cluster.whoelsesince(since));
+        for (Profile profile : userRegistry.loggedInSince(since)) {
+            if (profile != clientProfile) {
+                logins.add(new Cluster.LoginTime(profile.getLastLoginMillis(), profile.getUsername()));
+            }
+        }
+        logins.sort(Comparator.comparingLong(Cluster.LoginTime::millis));
+        for (Cluster.LoginTime login : logins) {
+            users.add(login.username());
+        }
+        users.finish();
+    }
+
+    /**
+     * The version 1 reply for a user list: the list itself, or "NONE". It goes out as a single
+     * frame, so a list too long for one is cut after the last user that fits and ends with a
+     * line saying how many more there are.
+     */
+    public static String listReply(String users) {
+        if (users.isBlank()) {
+            return Status.NONE.text;
+        }
+        if ((long) users.length() * 3 <= MAX_LIST_REPLY_BYTES) {
+            return users;
+        }
+        byte[] bytes = users.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= MAX_LIST_REPLY_BYTES) {
+            return users;
+        }
+        int end = MAX_LIST_REPLY_BYTES;
+        while (bytes[end - 1] != '\n') {
+            end--;
+        }
+        int more = 0;
+        for (int i = end; i < bytes.length; i++) {
+            if (bytes[i] == '\n') {
+                more++;
+            }
+        }
+        return new String(bytes, 0, end, StandardCharsets.UTF_8) + "AND " + more + " MORE" + System.lineSeparator();
+    }
+
+    /**
+     * Whether the user exists, asking the node they live on when it is not this one.
+     */
+    private boolean userExists(String user) {
+        if (cluster == null || cluster.isLocal(user)) {
+            return userRegistry.contains(user);
+        }
+        try {
+            return cluster.exists(user);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public Status blockUser(Profile clientProfile, String user) {
+        if (!userExists(user)) {
+            return Status.USER_NOT_FOUND;
+        }
+        if (clientProfile.getUsername().equals(user)) {
+            return Status.DESTINATION_USER_IS_SELF;
+        }
+        if (!userRegistry.block(clientProfile, user)) {
+            return Status.USER_IS_ALREADY_BLOCKED;
+        }
+        return Status.OK;
+    }
+
+    public Status unblockUser(Profile clientProfile, String user) {
+        if (!userExists(user)) {
+            return Status.USER_NOT_FOUND;
+        }
+        if (clientProfile.getUsername().equals(user)) {
+            return Status.DESTINATION_USER_IS_SELF;
+        }
+        if (!userRegistry.unblock(clientProfile, user)) {
+            return Status.USER_IS_NOT_BLOCKED;
+        }
+        return Status.OK;
+    }
+
+    /**
+     * Builds a user list for a sink, handing it over a chunk at a time and leaving out the user
+     * asking for it.
+     */
+    private static class UserListWriter {
+        private final Profile clientProfile;
+        private final UserListSink sink;
+        private final StringBuilder chunk = new StringBuilder();
+        private int chunkUsers = 0;
+
+        UserListWriter(Profile clientProfile, UserListSink sink) {
+            this.clientProfile = clientProfile;
+            this.sink = sink;
+        }
+
+        void add(Profile profile) throws IOException {
+            if (profile != clientProfile) {
+                add(profile.getUsername());
+            }
+        }
+
+        void add(String username) throws IOException {
+            chunk.append(username).append(System.lineSeparator());
+            if (++chunkUsers == USER_LIST_CHUNK_SIZE) {
+                sink.chunk(chunk.toString(), false);
+                chunk.setLength(0);
+                chunkUsers = 0;
+            }
+        }
+
+        void finish() throws IOException {
+            sink.chunk(chunk.toString(), true);
+        }
+    }
+
+    private interface ListWriter {
+        void write(UserListSink sink) throws IOException;
+    }
+
+    /**
+     * Joins a streamed user list back into one string, for version 1 replies which are a single frame.
+     */
+    private static String collect(ListWriter writer) {
+        StringBuilder users = new StringBuilder();
+        try {
+            writer.write((chunk, last) -> users.append(chunk));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return users.toString();
+    }
 }
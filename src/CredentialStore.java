@@ -0,0 +1,442 @@
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * Usernames and password hashes in one file that is memory mapped rather than read, so opening it costs
+ * the same for ten users or ten million, and a user's record is only paged in when they first log
+ * in. New users are queued and appended by a background writer in batches, one sync per batch, so
+ * registering never waits on the disk. A crash can lose the registrations of the last batch.
+ * Changing a user's password hash appends a new record; it lands further along the same probe
+ * sequence than the old one, so lookups take the last record with the name. Growing the index
+ * rewrites the file with only the last record of each name.
+ *
+ * File layout: a header (int magic, int version, int slot count, int record count, long data
+ * length, int user count), then an open addressing hash index of slots, then the records. A slot is 0 when empty,
+ * otherwise the top half of the name's hash in its high int and the record's offset in the data
+ * plus one in its low int, so most probes that miss never touch the record. A record is short name
+ * length, name, short hash length, hash, all UTF-8, so neither may be longer than
+ * MAX_FIELD_LENGTH bytes. Passwords imported from credentials.txt are
+ * hashed on import, so they are never written to the file in plain text.
+ */
+public class CredentialStore {
+    // Longest username or password hash in UTF-8 bytes, as its length is stored in a short
+    public static final int MAX_FIELD_LENGTH = 0xffff;
+    private static final int MAGIC = 0x43524544;
+    private static final int VERSION = 2;
+    private static final int SLOT_COUNT_OFFSET = 8;
+    private static final int RECORD_COUNT_OFFSET = 12;
+    private static final int DATA_LENGTH_OFFSET = 16;
+    private static final int USER_COUNT_OFFSET = 24;
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 8;
+    private static final int MIN_SLOTS = 1024;
+    private static final int MAX_BATCH = 1024;
+    // Slots are read while the writer fills others, so each is read and written as a whole long
+    private static final VarHandle SLOT = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private record Credential(String username, String passwordHash, boolean newUser) {
+    }
+
+    /**
+     * One generation of the file. The writer replaces it with a larger one when the index fills;
+     * readers keep using the one they started with, whose mappings stay valid.
+     */
+    private record Table(FileChannel channel, MappedByteBuffer index, ByteBuffer data, int slotCount) {
+        long dataStart() {
+            return CredentialStore.dataStart(slotCount);
+        }
+    }
+
+    private final Path path;
+    private volatile Table table;
+    // Only touched by the writer, under this
+    private int recordCount;
+    private int userCount;
+    private long dataLength;
+    // Records stored plus those queued
+    private final AtomicInteger size;
+    private final BlockingQueue<Credential> pending = new LinkedBlockingQueue<>();
+    private final Thread writer;
+
+    private CredentialStore(Path path) throws IOException {
+        this.path = path;
+        this.table = map(path);
+        this.recordCount = table.index.getInt(RECORD_COUNT_OFFSET);
+        this.dataLength = table.index.getLong(DATA_LENGTH_OFFSET);
+        this.userCount = table.index.getInt(USER_COUNT_OFFSET);
+        this.size = new AtomicInteger(userCount);
+        this.writer = new Thread(this::writeCredentials, "credential-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::flushOnExit, "credential-flush"));
+    }
+
+    /**
+     * Opens the store, first building it from the text file of "username password" lines when it
+     * does not exist yet. Only users the filter accepts are imported, and their passwords are
+     * hashed across all cores, as a large file would otherwise take minutes to import.
+     */
+    public static CredentialStore open(Path path, Path textFile, Predicate<String> include) throws IOException {
+        if (!Files.exists(path)) {
+            importText(path, textFile, include);
+        }
+        return new CredentialStore(path);
+    }
+
+    private static void importText(Path path, Path textFile, Predicate<String> include) throws IOException {
+        List<String[]> users = new ArrayList<>();
+        if (Files.exists(textFile)) {
+            try (BufferedReader reader = Files.newBufferedReader(textFile)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String[] splitArray = line.split(" ");
+                    if (splitArray.length < 2 || !include.test(splitArray[0])) {
+                        continue;
+                    }
+                    if (!fits(splitArray[0], splitArray[1])) {
+                        Log.warn("===== Skipped a user in " + textFile + " whose name or password is too long =====");
+                        continue;
+                    }
+                    users.add(splitArray);
+                }
+            }
+        } else {
+            Log.warn("===== " + textFile + " not found, starting with no users =====");
+        }
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        users.parallelStream()
+                .map(user -> encode(user[0], PasswordHash.hash(user[1])).array())
+                .forEachOrdered(records::writeBytes);
+        int count = users.size();
+        create(path, slotsFor(count), ByteBuffer.wrap(records.toByteArray()), count, count);
+        Log.info("===== Imported " + count + " users from " + textFile + " into " + path + " =====");
+    }
+
+    private static int slotsFor(int records) {
+        return Math.max(MIN_SLOTS, Integer.highestOneBit(Math.max(1, records)) << 2);
+    }
+
+    private static long dataStart(int slotCount) {
+        return HEADER_SIZE + (long) slotCount * SLOT_SIZE;
+    }
+
+    /**
+     * Writes a new file holding the given records and an index of them beside the target, then
+     * moves it into place.
+     */
+    private static void create(Path path, int slotCount, ByteBuffer data, int recordCount, int userCount) throws IOException {
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_WRITE, 0, dataStart(slotCount));
+            index.putInt(0, MAGIC);
+            index.putInt(4, VERSION);
+            index.putInt(SLOT_COUNT_OFFSET, slotCount);
+            index.putInt(RECORD_COUNT_OFFSET, recordCount);
+            index.putLong(DATA_LENGTH_OFFSET, data.remaining());
+            index.putInt(USER_COUNT_OFFSET, userCount);
+            int dataLength = data.remaining();
+            for (int offset = 0; offset < dataLength; ) {
+                int nameLength = data.getShort(data.position() + offset) & 0xffff;
+                insert(index, slotCount, hash(data, data.position() + offset + 2, nameLength), offset);
+                offset += 2 + nameLength;
+                offset += 2 + (data.getShort(data.position() + offset) & 0xffff);
+            }
+            writeFully(channel, data.duplicate(), dataStart(slotCount));
+            index.force();
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Table map(Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header, 0);
+        if (header.getInt(0) != MAGIC) {
+            channel.close();
+            throw new IOException(path + " is not a credential store");
+        }
+        if (header.getInt(4) != VERSION) {
+            channel.close();
+            throw new IOException(path + " is version " + header.getInt(4) + " of the credential store, delete it to import credentials.txt again");
+        }
+        int slotCount = header.getInt(SLOT_COUNT_OFFSET);
+        long dataLength = header.getLong(DATA_LENGTH_OFFSET);
+        MappedByteBuffer index = channel.map(FileChannel.MapMode.READ_WRITE, 0, dataStart(slotCount));
+        // Records appended after this are not in the mapping; their users are already in memory
+        MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, dataStart(slotCount), dataLength);
+        return new Table(channel, index, data, slotCount);
+    }
+
+    /**
+     * Returns the user's password hash, or null when the store has no such user.
+     */
+    public String passwordHash(String username) {
+        Table current = table;
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        long hash = hash(ByteBuffer.wrap(name), 0, name.length);
+        int mask = current.slotCount - 1;
+        int slot = (int) hash & mask;
+        String passwordHash = null;
+        for (int probe = 0; probe < current.slotCount; probe++) {
+            long entry = (long) SLOT.getAcquire(current.index, HEADER_SIZE + slot * SLOT_SIZE);
+            if (entry == 0) {
+                break;
+            }
+            if ((int) (entry >>> 32) == (int) (hash >>> 32)) {
+                String found = hashIfNamed(current.data, (int) entry - 1, name);
+                if (found != null) {
+                    passwordHash = found;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+        return passwordHash;
+    }
+
+    public boolean contains(String username) {
+        return passwordHash(username) != null;
+    }
+
+    private static String hashIfNamed(ByteBuffer data, int offset, byte[] name) {
+        if (offset < 0 || offset + 2 + name.length + 2 > data.limit() || (data.getShort(offset) & 0xffff) != name.length) {
+            return null;
+        }
+        if (data.slice(offset + 2, name.length).compareTo(ByteBuffer.wrap(name)) != 0) {
+            return null;
+        }
+        int hashOffset = offset + 2 + name.length;
+        int hashLength = data.getShort(hashOffset) & 0xffff;
+        if (hashOffset + 2 + hashLength > data.limit()) {
+            return null;
+        }
+        byte[] passwordHash = new byte[hashLength];
+        data.get(hashOffset + 2, passwordHash);
+        return new String(passwordHash, StandardCharsets.UTF_8);
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Queues a new user for the writer. The caller has made sure the name is not taken.
+     */
+    public void append(String username, String passwordHash) {
+        requireFits(username, passwordHash);
+        size.incrementAndGet();
+        pending.add(new Credential(username, passwordHash, true));
+    }
+
+    /**
+     * Queues a new password hash for a user already in the store.
+     */
+    public void update(String username, String passwordHash) {
+        requireFits(username, passwordHash);
+        pending.add(new Credential(username, passwordHash, false));
+    }
+
+    // ===== Writer thread =====
+
+    private void writeCredentials() {
+        List<Credential> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(pending.take());
+                pending.drainTo(batch, MAX_BATCH - 1);
+                write(batch);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                Log.error("Writing " + batch.size() + " users to " + path + " failed", e);
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * The records are synced before the header counts them and the index points at them, so a
+     * crash leaves at worst records nothing refers to.
+     */
+    private synchronized void write(List<Credential> batch) throws IOException {
+        if ((recordCount + batch.size()) * 4L > table.slotCount * 3L) {
+            grow(batch.size());
+        }
+        Table current = table;
+        List<ByteBuffer> encoded = new ArrayList<>(batch.size());
+        for (Credential credential : batch) {
+            encoded.add(encode(credential.username, credential.passwordHash).flip());
+        }
+        ByteBuffer records = ByteBuffer.allocate(encoded.stream().mapToInt(ByteBuffer::remaining).sum());
+        long[] hashes = new long[batch.size()];
+        int[] offsets = new int[batch.size()];
+        for (int i = 0; i < batch.size(); i++) {
+            offsets[i] = (int) dataLength + records.position();
+            hashes[i] = hash(batch.get(i).username);
+            records.put(encoded.get(i));
+        }
+        writeFully(current.channel, records.flip(), current.dataStart() + dataLength);
+        current.channel.force(false);
+        dataLength += records.limit();
+        recordCount += batch.size();
+        userCount += (int) batch.stream().filter(Credential::newUser).count();
+        current.index.putLong(DATA_LENGTH_OFFSET, dataLength);
+        current.index.putInt(RECORD_COUNT_OFFSET, recordCount);
+        current.index.putInt(USER_COUNT_OFFSET, userCount);
+        for (int i = 0; i < batch.size(); i++) {
+            insert(current.index, current.slotCount, hashes[i], offsets[i]);
+        }
+        current.index.force();
+    }
+
+    /**
+     * Rebuilds the file without superseded records, with an index large enough for them and the
+     * next batch, and switches lookups over to it.
+     */
+    private void grow(int batchSize) throws IOException {
+        Table old = table;
+        ByteBuffer data = old.channel.map(FileChannel.MapMode.READ_ONLY, old.dataStart(), dataLength);
+        int dropped = 0;
+        // Only a changed password hash supersedes a record
+        if (recordCount > userCount) {
+            int records = recordCount;
+            data = latestRecords(data);
+            recordCount = countRecords(data);
+            dropped = records - recordCount;
+        }
+        int slotCount = old.slotCount;
+        while ((recordCount + batchSize) * 4L > slotCount * 3L) {
+            slotCount <<= 1;
+        }
+        create(path, slotCount, data, recordCount, userCount);
+        dataLength = data.limit();
+        table = map(path);
+        old.channel.close();
+        Log.info("===== Credential index rebuilt with " + slotCount + " slots, " + dropped + " superseded records dropped =====");
+    }
+
+    /**
+     * Copies the last record of every name, in the order they were written.
+     */
+    private static ByteBuffer latestRecords(ByteBuffer data) {
+        Map<ByteBuffer, Integer> latest = new HashMap<>();
+        for (int offset = 0; offset < data.limit(); offset = recordEnd(data, offset)) {
+            latest.put(data.slice(offset + 2, data.getShort(offset) & 0xffff), offset);
+        }
+        int[] offsets = latest.values().stream().mapToInt(Integer::intValue).sorted().toArray();
+        int length = 0;
+        for (int offset : offsets) {
+            length += recordEnd(data, offset) - offset;
+        }
+        ByteBuffer records = ByteBuffer.allocate(length);
+        for (int offset : offsets) {
+            records.put(data.slice(offset, recordEnd(data, offset) - offset));
+        }
+        return records.flip();
+    }
+
+    private static int countRecords(ByteBuffer data) {
+        int count = 0;
+        for (int offset = 0; offset < data.limit(); offset = recordEnd(data, offset)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static int recordEnd(ByteBuffer data, int offset) {
+        int hashOffset = offset + 2 + (data.getShort(offset) & 0xffff);
+        return hashOffset + 2 + (data.getShort(hashOffset) & 0xffff);
+    }
+
+    private void flushOnExit() {
+        List<Credential> batch = new ArrayList<>();
+        pending.drainTo(batch);
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            write(batch);
+        } catch (IOException e) {
+            Log.error("Writing " + batch.size() + " users to " + path + " failed", e);
+        }
+    }
+
+    private static void insert(MappedByteBuffer index, int slotCount, long hash, int offset) {
+        int mask = slotCount - 1;
+        int slot = (int) hash & mask;
+        while (index.getLong(HEADER_SIZE + slot * SLOT_SIZE) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        SLOT.setRelease(index, HEADER_SIZE + slot * SLOT_SIZE, (hash & 0xffffffff00000000L) | (offset + 1L));
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    private static boolean fits(String username, String passwordHash) {
+        return username.getBytes(StandardCharsets.UTF_8).length <= MAX_FIELD_LENGTH
+                && passwordHash.getBytes(StandardCharsets.UTF_8).length <= MAX_FIELD_LENGTH;
+    }
+
+    /**
+     * Checked when a credential is queued, as one the writer could not encode would fail its whole batch.
+     */
+    private static void requireFits(String username, String passwordHash) {
+        if (!fits(username, passwordHash)) {
+            throw new IllegalArgumentException("Username or password hash longer than " + MAX_FIELD_LENGTH + " bytes");
+        }
+    }
+
+    private static ByteBuffer encode(String username, String passwordHash) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        byte[] secret = passwordHash.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer record = ByteBuffer.allocate(2 + name.length + 2 + secret.length);
+        record.putShort((short) name.length).put(name).putShort((short) secret.length).put(secret);
+        return record;
+    }
+
+    private static long hash(String username) {
+        byte[] name = username.getBytes(StandardCharsets.UTF_8);
+        return hash(ByteBuffer.wrap(name), 0, name.length);
+    }
+
+    /**
+     * 64 bit FNV-1a with a final mix, as HashRing uses, so the low bits pick the slot and the high
+     * bits are free for the tag.
+     */
+    private static long hash(ByteBuffer bytes, int offset, int length) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = offset; i < offset + length; i++) {
+            hash ^= bytes.get(i) & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
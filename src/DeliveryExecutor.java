@@ -0,0 +1,161 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Delivers messages to recipients off the sender's thread. Each recipient always maps to the
+ * same lane, a single thread with a bounded queue, so one user receives messages in the order
+ * they were queued. When a lane is full the message is spilled to the recipient's mailbox instead
+ * of blocking the sender, after that recipient's messages still waiting in the lane, and a drain
+ * sends them in that order. A recipient who is not logged in just has them kept for their next
+ * login.
+ */
+public class DeliveryExecutor {
+    private final Lane[] lanes;
+    private final int laneCapacity;
+    private final MailboxDrainer mailboxDrainer;
+
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder delivered = new LongAdder();
+    private final LongAdder storedOffline = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    private record Delivery(Profile recipient, PushMessage message) {
+    }
+
+    private static final class Lane {
+        final ArrayDeque<Delivery> deliveries = new ArrayDeque<>();
+        final ReentrantLock lock = new ReentrantLock();
+        final Condition notEmpty = lock.newCondition();
+        final Condition idle = lock.newCondition();
+        // Whose message the lane's thread is delivering, null between deliveries
+        Profile delivering;
+    }
+
+    public DeliveryExecutor(int laneCount, int laneCapacity, MailboxDrainer mailboxDrainer) {
+        this.laneCapacity = laneCapacity;
+        this.mailboxDrainer = mailboxDrainer;
+        this.lanes = new Lane[laneCount];
+        for (int i = 0; i < laneCount; i++) {
+            Lane lane = new Lane();
+            lanes[i] = lane;
+            Thread thread = new Thread(() -> run(lane), "delivery-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    public void deliver(Profile recipient, PushMessage message) {
+        Lane lane = lanes[Math.floorMod(recipient.getUsername().hashCode(), lanes.length)];
+        boolean startDrain;
+        lane.lock.lock();
+        try {
+            if (lane.deliveries.size() < laneCapacity) {
+                lane.deliveries.add(new Delivery(recipient, message));
+                lane.notEmpty.signal();
+                queued.increment();
+                return;
+            }
+            startDrain = recipient.spillMessages(takeWaiting(lane, recipient, message));
+        } finally {
+            lane.lock.unlock();
+        }
+        if (startDrain) {
+            mailboxDrainer.start(recipient);
+        }
+    }
+
+    /**
+     * Removes the recipient's messages from a full lane and returns them followed by the one that
+     * did not fit. Waits for the lane to finish a delivery to the same recipient first, so that
+     * one can not end up behind them. Called with the lane's lock held.
+     */
+    private List<String> takeWaiting(Lane lane, Profile recipient, PushMessage message) {
+        while (lane.delivering == recipient) {
+            lane.idle.awaitUninterruptibly();
+        }
+        List<String> messages = new ArrayList<>();
+        Iterator<Delivery> waiting = lane.deliveries.iterator();
+        while (waiting.hasNext()) {
+            Delivery delivery = waiting.next();
+            if (delivery.recipient() == recipient) {
+                waiting.remove();
+                messages.add(delivery.message().text());
+            }
+        }
+        messages.add(message.text());
+        rejected.add(messages.size());
+        return messages;
+    }
+
+    private void run(Lane lane) {
+        while (true) {
+            Delivery delivery;
+            lane.lock.lock();
+            try {
+                lane.delivering = null;
+                lane.idle.signalAll();
+                while ((delivery = lane.deliveries.poll()) == null) {
+                    lane.notEmpty.awaitUninterruptibly();
+                }
+                lane.delivering = delivery.recipient();
+            } finally {
+                lane.lock.unlock();
+            }
+            try {
+                if (delivery.recipient().recieveMessage(delivery.message())) {
+                    delivered.increment();
+                } else {
+                    storedOffline.increment();
+                }
+            } catch (RuntimeException e) {
+                failed.increment();
+                Log.error("Delivery to " + delivery.recipient().getUsername() + " failed", e);
+            }
+        }
+    }
+
+    public long getQueued() {
+        return queued.sum();
+    }
+
+    public long getDelivered() {
+        return delivered.sum();
+    }
+
+    public long getStoredOffline() {
+        return storedOffline.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (Lane lane : lanes) {
+            lane.lock.lock();
+            try {
+                depth += lane.deliveries.size();
+            } finally {
+                lane.lock.unlock();
+            }
+        }
+        return depth;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("queued=%d delivered=%d storedOffline=%d rejected=%d failed=%d depth=%d",
+                getQueued(), getDelivered(), getStoredOffline(), getRejected(), getFailed(), getQueueDepth());
+    }
+}
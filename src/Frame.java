@@ -0,0 +1,28 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A frame read by the client. Pushes are deliveries the server sends on its own (chat
+ * messages, broadcasts, the inactivity notice) and are told apart from command replies by
+ * MessageHandler.PUSH_FLAG in the length prefix. A batch push carries several messages, see
+ * BinaryProtocol.getBatch.
+ */
+public class Frame {
+    public final boolean push;
+    public final boolean batch;
+    public final ByteBuffer payload;
+
+    public Frame(boolean push, ByteBuffer payload) {
+        this(push, false, payload);
+    }
+
+    public Frame(boolean push, boolean batch, ByteBuffer payload) {
+        this.push = push;
+        this.batch = batch;
+        this.payload = payload;
+    }
+
+    public String text() {
+        return StandardCharsets.UTF_8.decode(payload.duplicate()).toString();
+    }
+}
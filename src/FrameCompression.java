@@ -0,0 +1,117 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate compression of frame payloads. A client asks for it in its hello (see
+ * BinaryProtocol.HELLO_DEFLATE) and from then on either side may send frames with
+ * MessageHandler.COMPRESSED_FLAG set, whose payload is the 4 byte length of the original payload
+ * followed by its raw deflate stream. Only payloads of at least THRESHOLD bytes are compressed,
+ * and only when that makes them smaller, so short replies and pushes go out as before.
+ *
+ * A Deflater holds a few hundred KB of native memory, so they are pooled and shared by every
+ * connection rather than kept per connection or per thread.
+ */
+public final class FrameCompression {
+    public static final String DEFLATE = "deflate";
+    // -Dcompression=off makes the server turn down every request for compression
+    public static final boolean ENABLED = DEFLATE.equals(System.getProperty("compression", DEFLATE));
+    // Below this the fixed cost of resetting a deflater outweighs the few bytes saved
+    public static final int THRESHOLD = Integer.getInteger("compression.threshold", 1024);
+    private static final int LEVEL = Integer.getInteger("compression.level", Deflater.BEST_SPEED);
+    private static final int LENGTH_PREFIX = 4;
+
+    private static final ConcurrentLinkedQueue<Deflater> deflaters = new ConcurrentLinkedQueue<>();
+    private static final ConcurrentLinkedQueue<Inflater> inflaters = new ConcurrentLinkedQueue<>();
+
+    private FrameCompression() {
+    }
+
+    /**
+     * Returns the compressed payload, or null when the payload is below THRESHOLD or does not
+     * get smaller. The payload's position is left unchanged.
+     */
+    public static ByteBuffer deflate(ByteBuffer payload) {
+        if (payload.remaining() < THRESHOLD) {
+            return null;
+        }
+        Deflater deflater = deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(LEVEL, true);
+        }
+        try {
+            return deflate(payload, deflater);
+        } finally {
+            deflater.reset();
+            deflaters.add(deflater);
+        }
+    }
+
+    /**
+     * Compresses with the given deflater, which the caller resets afterwards.
+     */
+    static ByteBuffer deflate(ByteBuffer payload, Deflater deflater) {
+        int length = payload.remaining();
+        if (length <= LENGTH_PREFIX) {
+            return null;
+        }
+        // Room for no more than the original, anything longer is not worth sending
+        ByteBuffer compressed = ByteBuffer.allocate(length);
+        compressed.putInt(length);
+        deflater.setInput(payload.duplicate());
+        deflater.finish();
+        while (!deflater.finished()) {
+            if (!compressed.hasRemaining()) {
+                return null;
+            }
+            deflater.deflate(compressed);
+        }
+        return compressed.flip();
+    }
+
+    /**
+     * Restores a payload compressed by deflate into a new buffer.
+     */
+    public static ByteBuffer inflate(ByteBuffer compressed) throws IOException {
+        Inflater inflater = inflaters.poll();
+        if (inflater == null) {
+            inflater = new Inflater(true);
+        }
+        try {
+            return inflate(compressed, inflater);
+        } finally {
+            inflater.reset();
+            inflaters.add(inflater);
+        }
+    }
+
+    static ByteBuffer inflate(ByteBuffer compressed, Inflater inflater) throws IOException {
+        ByteBuffer input = compressed.duplicate();
+        if (input.remaining() < LENGTH_PREFIX) {
+            throw new IOException("Compressed frame is too short");
+        }
+        int length = input.getInt();
+        if (length < 0 || length > MessageHandler.MAX_FRAME_LENGTH) {
+            throw new IOException("Compressed frame of " + length + " bytes is too large");
+        }
+        // One byte spare, so a stream that holds more than it claims is caught
+        ByteBuffer payload = ByteBuffer.allocate(length + 1);
+        inflater.setInput(input);
+        try {
+            while (!inflater.finished()) {
+                if (inflater.inflate(payload) == 0 && (inflater.needsInput() || inflater.needsDictionary() || !payload.hasRemaining())) {
+                    throw new IOException("Compressed frame is truncated or too long");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Compressed frame is corrupt", e);
+        }
+        if (payload.position() != length) {
+            throw new IOException("Compressed frame does not match its length");
+        }
+        return payload.flip();
+    }
+}
@@ -0,0 +1,114 @@
+import java.io.IOException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounds the connections that have been accepted but have not sent their HELLO yet. Accepting
+ * only takes a permit, so the accept thread never waits on a client. A connection that does not
+ * finish its handshake before the deadline is closed, and once the cap is reached new
+ * connections are closed straight away until handshakes finish.
+ */
+public class HandshakeLimiter {
+    private final Semaphore permits;
+    private final long deadlineMillis;
+    private final ScheduledExecutorService deadlines;
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final int maxPending;
+
+    public HandshakeLimiter(int maxPending, long deadlineMillis) {
+        this.maxPending = maxPending;
+        this.permits = new Semaphore(maxPending);
+        this.deadlineMillis = deadlineMillis;
+        this.deadlines = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "handshake-deadline");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public class Handshake {
+        private final Runnable onExpire;
+        private final AtomicBoolean finished = new AtomicBoolean(false);
+        private final ScheduledFuture<?> deadline;
+
+        private Handshake(Runnable onExpire) {
+            this.onExpire = onExpire;
+            this.deadline = deadlines.schedule(this::expire, deadlineMillis, TimeUnit.MILLISECONDS);
+        }
+
+        /**
+         * Called once the HELLO has been read. Returns false when the deadline passed first and
+         * the connection has already been closed.
+         */
+        public boolean complete() {
+            if (!finished.compareAndSet(false, true)) {
+                return false;
+            }
+            deadline.cancel(false);
+            permits.release();
+            return true;
+        }
+
+        private void expire() {
+            if (finished.compareAndSet(false, true)) {
+                permits.release();
+                timedOut.increment();
+                onExpire.run();
+            }
+        }
+    }
+
+    /**
+     * Starts the deadline for a newly accepted connection. Returns null, having closed the
+     * connection, when too many handshakes are already pending.
+     */
+    public Handshake begin(SocketChannel channel) {
+        return begin(channel, () -> close(channel));
+    }
+
+    /**
+     * As begin, but a connection past its deadline is closed by running onExpire, for servers
+     * that have to close it on a particular thread.
+     */
+    public Handshake begin(SocketChannel channel, Runnable onExpire) {
+        if (!permits.tryAcquire()) {
+            rejected.increment();
+            close(channel);
+            return null;
+        }
+        return new Handshake(onExpire);
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.error("Closing connection failed", e);
+        }
+    }
+
+    public int getPending() {
+        return maxPending - permits.availablePermits();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getTimedOut() {
+        return timedOut.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("pending=%d rejected=%d timedOut=%d", getPending(), getRejected(), getTimedOut());
+    }
+}
@@ -0,0 +1,44 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hashing of usernames onto node ids. Each node is placed on the ring at many points,
+ * so users spread evenly and adding or removing a node only moves the users between its points
+ * and their neighbours. Every node builds the same ring from the same node list, so any of them
+ * can tell where a user lives without asking.
+ */
+public class HashRing {
+    private static final int POINTS_PER_NODE = 160;
+
+    private final TreeMap<Long, Integer> ring = new TreeMap<>();
+
+    public HashRing(int nodeCount) {
+        for (int node = 0; node < nodeCount; node++) {
+            for (int point = 0; point < POINTS_PER_NODE; point++) {
+                ring.put(hash("node-" + node + "#" + point), node);
+            }
+        }
+    }
+
+    public int nodeFor(String username) {
+        Map.Entry<Long, Integer> entry = ring.ceilingEntry(hash(username));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * 64 bit FNV-1a of the UTF-8 bytes with a final mix. String.hashCode would put names that
+     * differ in their last character, like user1 and user2, next to each other on the ring.
+     */
+    static long hash(String key) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : key.getBytes(StandardCharsets.UTF_8)) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+}
@@ -0,0 +1,120 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inactivity timeouts for every session, kept in one hashed timing wheel driven by a single
+ * thread. A session registers once its handshake is done and then only calls touch() on each request, which
+ * is a single volatile write. The wheel is checked lazily: when a session's bucket comes round,
+ * it either expires or is moved to the bucket of its new deadline, so each tick only looks at
+ * the sessions that might be due.
+ */
+public class IdleTimer {
+    private static final long TICK_MILLIS = 100;
+    private static final int WHEEL_SIZE = 512;
+
+    private final long timeoutNanos;
+    private final long tickNanos = TimeUnit.MILLISECONDS.toNanos(TICK_MILLIS);
+    private final long startNanos = System.nanoTime();
+    // Buckets are only touched by the timer thread; new sessions come in through added
+    private final List<ArrayDeque<Handle>> wheel = new ArrayList<>(WHEEL_SIZE);
+    private final Queue<Handle> added = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService ticker;
+    private long nextTick = 0;
+
+    public class Handle {
+        private final Runnable onExpire;
+        private volatile long lastActivity = System.nanoTime();
+        private volatile boolean cancelled = false;
+        private long rounds;
+
+        private Handle(Runnable onExpire) {
+            this.onExpire = onExpire;
+        }
+
+        public void touch() {
+            lastActivity = System.nanoTime();
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+
+    public IdleTimer(long timeoutMillis) {
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        for (int i = 0; i < WHEEL_SIZE; i++) {
+            wheel.add(new ArrayDeque<>());
+        }
+        this.ticker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "idle-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        ticker.scheduleAtFixedRate(this::tick, TICK_MILLIS, TICK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Starts timing a session. onExpire runs on the timer thread once the session has gone
+     * the whole timeout without a touch, so it should only hand the close off to the session.
+     */
+    public Handle register(Runnable onExpire) {
+        Handle handle = new Handle(onExpire);
+        added.add(handle);
+        return handle;
+    }
+
+    private void tick() {
+        try {
+            long now = System.nanoTime();
+            long currentTick = (now - startNanos) / tickNanos;
+            Handle handle;
+            while ((handle = added.poll()) != null) {
+                schedule(handle, nextTick);
+            }
+            for (; nextTick <= currentTick; nextTick++) {
+                expireBucket(nextTick, now);
+            }
+        } catch (RuntimeException e) {
+            Log.error("Idle timer tick failed", e);
+        }
+    }
+
+    private void expireBucket(long tick, long now) {
+        ArrayDeque<Handle> bucket = wheel.get((int) (tick % WHEEL_SIZE));
+        for (int i = bucket.size(); i > 0; i--) {
+            Handle handle = bucket.poll();
+            if (handle.cancelled) {
+                continue;
+            }
+            if (handle.rounds > 0) {
+                handle.rounds--;
+                bucket.add(handle);
+            } else if (now - handle.lastActivity >= timeoutNanos) {
+                handle.onExpire.run();
+            } else {
+                schedule(handle, tick + 1);
+            }
+        }
+    }
+
+    /**
+     * Puts a handle in the bucket of its deadline. earliestTick is the first tick still to be
+     * processed for it, which decides how many full turns of the wheel it has to wait.
+     */
+    private void schedule(Handle handle, long earliestTick) {
+        long deadline = handle.lastActivity + timeoutNanos - startNanos;
+        long deadlineTick = Math.max((deadline + tickNanos - 1) / tickNanos, earliestTick);
+        handle.rounds = (deadlineTick - earliestTick) / WHEEL_SIZE;
+        wheel.get((int) (deadlineTick % WHEEL_SIZE)).add(handle);
+    }
+
+    public void close() {
+        ticker.shutdown();
+    }
+}
@@ -0,0 +1,56 @@
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps waiting messages on the heap. Nothing survives a restart.
+ */
+public class InMemoryMailbox implements Mailbox {
+    private final Map<String, Deque<String>> messages = new HashMap<>();
+    private long total = 0;
+
+    @Override
+    public synchronized void append(String username, String message) {
+        messages.computeIfAbsent(username, key -> new ArrayDeque<>()).add(message);
+        total++;
+    }
+
+    @Override
+    public synchronized List<String> drain(String username, int maxMessages, int maxBytes) {
+        List<String> drained = new ArrayList<>();
+        Deque<String> waiting = messages.get(username);
+        int bytes = 0;
+        while (waiting != null && !waiting.isEmpty() && drained.size() < maxMessages) {
+            int length = waiting.peek().getBytes(StandardCharsets.UTF_8).length;
+            if (!drained.isEmpty() && bytes + length > maxBytes) {
+                break;
+            }
+            bytes += length;
+            drained.add(waiting.poll());
+        }
+        total -= drained.size();
+        if (waiting != null && waiting.isEmpty()) {
+            messages.remove(username);
+        }
+        return drained;
+    }
+
+    @Override
+    public synchronized int pendingCount(String username) {
+        Deque<String> waiting = messages.get(username);
+        return waiting == null ? 0 : waiting.size();
+    }
+
+    @Override
+    public synchronized long totalPending() {
+        return total;
+    }
+
+    @Override
+    public void close() {
+    }
+}
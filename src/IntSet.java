@@ -0,0 +1,58 @@
+import java.util.Arrays;
+
+/**
+ * An immutable set of ints kept as a sorted array: four bytes a member, a binary search to test
+ * one, and members in order for walking alongside a bitmap. Changing it makes a new set, so it is
+ * held in a volatile field and replaced under the owner's lock while readers go on without one.
+ */
+public final class IntSet {
+    public static final IntSet EMPTY = new IntSet(new int[0]);
+
+    private final int[] members;
+
+    private IntSet(int[] members) {
+        this.members = members;
+    }
+
+    public boolean contains(int value) {
+        return Arrays.binarySearch(members, value) >= 0;
+    }
+
+    public int size() {
+        return members.length;
+    }
+
+    /**
+     * The member at the given position, smallest first.
+     */
+    public int get(int position) {
+        return members[position];
+    }
+
+    public IntSet with(int value) {
+        int position = Arrays.binarySearch(members, value);
+        if (position >= 0) {
+            return this;
+        }
+        position = -position - 1;
+        int[] larger = new int[members.length + 1];
+        System.arraycopy(members, 0, larger, 0, position);
+        larger[position] = value;
+        System.arraycopy(members, position, larger, position + 1, members.length - position);
+        return new IntSet(larger);
+    }
+
+    public IntSet without(int value) {
+        int position = Arrays.binarySearch(members, value);
+        if (position < 0) {
+            return this;
+        }
+        if (members.length == 1) {
+            return EMPTY;
+        }
+        int[] smaller = new int[members.length - 1];
+        System.arraycopy(members, 0, smaller, 0, position);
+        System.arraycopy(members, position + 1, smaller, position, smaller.length - position);
+        return new IntSet(smaller);
+    }
+}
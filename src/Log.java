@@ -0,0 +1,204 @@
+import java.io.BufferedWriter;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Server log. A call only claims a slot in a fixed size ring and stores the record; a single
+ * background thread formats the records and writes them to standard output, so a slow console
+ * never holds up a connection. When the ring is full the record is dropped rather than waiting,
+ * and the writer reports how many were lost.
+ *
+ * Each line is the time, level, thread and message. The level is set with -Dlog.level
+ * (debug, info, warn, error; info by default), and the ring size with -Dlog.buffer.
+ */
+public class Log {
+    public enum Level {
+        DEBUG,
+        INFO,
+        WARN,
+        ERROR
+    }
+
+    private static final int DEFAULT_BUFFER = 8192;
+    private static final String[] LEVEL_NAMES = {"DEBUG", "INFO ", "WARN ", "ERROR"};
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private record Entry(long millis, Level level, String thread, String message, Throwable error) {
+    }
+
+    private static final Level level = parseLevel(System.getProperty("log.level", "info"));
+    private static final Entry[] slots;
+    // Slot i holds the record claimed at position p once its sequence is p + 1, and is free for position p when it is p
+    private static final AtomicLongArray sequences;
+    private static final int mask;
+    private static final AtomicLong tail = new AtomicLong();
+    // Only moved by drain
+    private static long head = 0;
+    private static final LongAdder dropped = new LongAdder();
+    private static long droppedReported = 0;
+    private static volatile boolean writerParked = false;
+    private static final Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out), StandardCharsets.UTF_8), 64 * 1024);
+    private static final Thread writer;
+
+    static {
+        int size = Integer.highestOneBit(Math.max(2, Integer.getInteger("log.buffer", DEFAULT_BUFFER)) - 1) << 1;
+        slots = new Entry[size];
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+        writer = new Thread(Log::writeEntries, "log-writer");
+        writer.setDaemon(true);
+        writer.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flushOnExit, "log-flush"));
+    }
+
+    private static Level parseLevel(String name) {
+        try {
+            return Level.valueOf(name.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return Level.INFO;
+        }
+    }
+
+    public static boolean isEnabled(Level at) {
+        return at.compareTo(level) >= 0;
+    }
+
+    public static void debug(String message) {
+        log(Level.DEBUG, message, null);
+    }
+
+    public static void info(String message) {
+        log(Level.INFO, message, null);
+    }
+
+    public static void warn(String message) {
+        log(Level.WARN, message, null);
+    }
+
+    public static void error(String message, Throwable error) {
+        log(Level.ERROR, message, error);
+    }
+
+    public static void log(Level at, String message, Throwable error) {
+        if (!isEnabled(at)) {
+            return;
+        }
+        Entry entry = new Entry(System.currentTimeMillis(), at, Thread.currentThread().getName(), message, error);
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slots[index] = entry;
+                    sequences.set(index, position + 1);
+                    break;
+                }
+                position = tail.get();
+            } else if (difference < 0) {
+                dropped.increment();
+                return;
+            } else {
+                position = tail.get();
+            }
+        }
+        if (writerParked) {
+            writerParked = false;
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Records lost because the ring was full.
+     */
+    public static long getDropped() {
+        return dropped.sum();
+    }
+
+    // ===== Writer thread =====
+
+    private static Entry poll() {
+        int index = (int) head & mask;
+        if (sequences.get(index) != head + 1) {
+            return null;
+        }
+        Entry entry = slots[index];
+        slots[index] = null;
+        sequences.set(index, head + slots.length);
+        head++;
+        return entry;
+    }
+
+    private static void writeEntries() {
+        while (true) {
+            try {
+                if (!drain()) {
+                    writerParked = true;
+                    // Checked again after parking is announced, so a record logged in between is not left waiting
+                    if (sequences.get((int) head & mask) != head + 1) {
+                        writerParked = false;
+                        continue;
+                    }
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    writerParked = false;
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Writes everything in the ring and flushes. Returns false when there was nothing to write.
+     */
+    private static synchronized boolean drain() throws IOException {
+        Entry entry = poll();
+        if (entry == null) {
+            return false;
+        }
+        StringBuilder line = new StringBuilder(128);
+        do {
+            line.setLength(0);
+            line.append(Instant.ofEpochMilli(entry.millis)).append(' ')
+                    .append(LEVEL_NAMES[entry.level.ordinal()]).append(" [").append(entry.thread).append("] ")
+                    .append(entry.message).append(System.lineSeparator());
+            out.write(line.toString());
+            if (entry.error != null) {
+                PrintWriter trace = new PrintWriter(out);
+                entry.error.printStackTrace(trace);
+                trace.flush();
+            }
+        } while ((entry = poll()) != null);
+        long lost = dropped.sum();
+        if (lost != droppedReported) {
+            out.write(Instant.ofEpochMilli(System.currentTimeMillis()) + " WARN  [log-writer] " + (lost - droppedReported) + " log lines dropped, the log buffer was full"
+                    + System.lineSeparator());
+            droppedReported = lost;
+        }
+        out.flush();
+        return true;
+    }
+
+    private static void flushOnExit() {
+        try {
+            drain();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
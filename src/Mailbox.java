@@ -0,0 +1,25 @@
+import java.util.List;
+
+/**
+ * Holds messages for users who are not online to receive them.
+ */
+public interface Mailbox {
+
+    void append(String username, String message);
+
+    /**
+     * Removes and returns up to maxMessages of the user's waiting messages, oldest first, stopping
+     * before the message that would take their UTF-8 size past maxBytes. The oldest message is
+     * always returned, however large.
+     */
+    List<String> drain(String username, int maxMessages, int maxBytes);
+
+    int pendingCount(String username);
+
+    /**
+     * Messages waiting across every user.
+     */
+    long totalPending();
+
+    void close();
+}
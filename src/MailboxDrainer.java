@@ -0,0 +1,147 @@
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Sends the messages kept while a user was away once they log in, off the thread that answers
+ * the login. The mailbox is taken a batch at a time, bounded by message count and bytes, and each
+ * batch goes out as one push. The next batch is only taken once the connection has written out
+ * what it already holds, so a large mailbox is fed to the client at the pace it reads.
+ *
+ * Batch limits come from -Ddrain.batch.messages and -Ddrain.batch.bytes.
+ */
+public class MailboxDrainer {
+    private static final int DEFAULT_BATCH_MESSAGES = 256;
+    private static final int DEFAULT_BATCH_BYTES = 64 * 1024;
+    private static final int RETRY_DELAY_MILLIS = 10;
+
+    private final ScheduledExecutorService executor;
+    private final int batchMessages;
+    private final int batchBytes;
+
+    private final LongAdder drains = new LongAdder();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private final LongAdder interrupted = new LongAdder();
+    private final LongAdder drainMillis = new LongAdder();
+    private final LongAccumulator maxDrainMillis = new LongAccumulator(Math::max, 0);
+
+    public MailboxDrainer(int threadCount) {
+        this(threadCount, Integer.getInteger("drain.batch.messages", DEFAULT_BATCH_MESSAGES),
+                Integer.getInteger("drain.batch.bytes", DEFAULT_BATCH_BYTES));
+    }
+
+    public MailboxDrainer(int threadCount, int batchMessages, int batchBytes) {
+        this.batchMessages = batchMessages;
+        this.batchBytes = batchBytes;
+        this.executor = Executors.newScheduledThreadPool(threadCount, runnable -> {
+            Thread thread = new Thread(runnable, "mailbox-drainer");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Starts sending the profile's kept messages. Called right after login; the drain stops on
+     * its own if the user logs out or logs in again on another connection.
+     */
+    public void start(Profile profile) {
+        Drain drain = new Drain(profile, profile.getPushChannel());
+        schedule(drain, 0);
+    }
+
+    private void schedule(Drain drain, int delayMillis) {
+        try {
+            executor.schedule(drain, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            interrupted.increment();
+        }
+    }
+
+    private class Drain implements Runnable {
+        private final Profile profile;
+        private final PushChannel channel;
+        private final long started = System.nanoTime();
+        private int sent = 0;
+
+        Drain(Profile profile, PushChannel channel) {
+            this.profile = profile;
+            this.channel = channel;
+        }
+
+        @Override
+        public void run() {
+            if (channel == null || profile.getPushChannel() != channel || !profile.isLoggedIn()) {
+                interrupted.increment();
+                return;
+            }
+            if (channel.backlogBytes() > 0) {
+                schedule(this, RETRY_DELAY_MILLIS);
+                return;
+            }
+            List<String> batch = profile.takeAwaitingMessages(batchMessages, batchBytes);
+            if (batch.isEmpty()) {
+                if (profile.finishDrain()) {
+                    finished();
+                } else {
+                    schedule(this, 0);
+                }
+                return;
+            }
+            if (!channel.pushBatch(batch)) {
+                profile.returnAwaitingMessages(batch);
+                interrupted.increment();
+                return;
+            }
+            sent += batch.size();
+            batches.increment();
+            messages.add(batch.size());
+            schedule(this, 0);
+        }
+
+        private void finished() {
+            if (sent == 0) {
+                return;
+            }
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            drains.increment();
+            drainMillis.add(millis);
+            maxDrainMillis.accumulate(millis);
+        }
+    }
+
+    public long getDrains() {
+        return drains.sum();
+    }
+
+    public long getMessages() {
+        return messages.sum();
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    public long getInterrupted() {
+        return interrupted.sum();
+    }
+
+    public long getAverageDrainMillis() {
+        long count = drains.sum();
+        return count == 0 ? 0 : drainMillis.sum() / count;
+    }
+
+    public long getMaxDrainMillis() {
+        return maxDrainMillis.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("drains=%d messages=%d batches=%d interrupted=%d avgMillis=%d maxMillis=%d",
+                getDrains(), getMessages(), getBatches(), getInterrupted(), getAverageDrainMillis(), getMaxDrainMillis());
+    }
+}
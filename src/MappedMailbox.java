@@ -0,0 +1,457 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Mailbox written to disk as append-only segment files through MappedByteBuffer.
+ *
+ * Users are spread over shards by username, each shard has its own files and lock. A user's
+ * waiting messages form a chain through the log: every record holds a pointer to the user's next
+ * record, so the heap only keeps a head pointer, tail pointer and count per user however many
+ * messages are waiting. Drained records are marked delivered in place, and a background task
+ * deletes segments once every record in them has been delivered. A segment that is less than a
+ * quarter pending, such as one held by a few messages for a user who never comes back, has the
+ * chains of those users copied to the segment being written so it can be deleted too.
+ *
+ * Record layout: int length, byte state, long next, short username length, username,
+ * int message length, message. The length is written last, so a record cut short by a crash
+ * reads as the end of the segment. The username length is unsigned, so names may be up to
+ * MAX_USERNAME_BYTES long.
+ */
+public final class MappedMailbox implements Mailbox {
+    // Longest username in UTF-8 bytes, as its length is stored in a short
+    public static final int MAX_USERNAME_BYTES = 0xffff;
+    private static final int RECORD_HEADER = 4 + 1 + 8 + 2 + 4;
+    private static final int STATE_OFFSET = 4;
+    private static final int NEXT_OFFSET = 5;
+    private static final byte PENDING = 0;
+    private static final byte DELIVERED = 1;
+    private static final long NO_RECORD = -1;
+    private static final int COMPACTION_INTERVAL_SECONDS = 30;
+
+    private final Shard[] shards;
+    private final ScheduledExecutorService compactor;
+
+    public MappedMailbox(Path directory, int shardCount, int segmentSize) throws IOException {
+        Files.createDirectories(directory);
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new Shard(directory, i, segmentSize);
+        }
+        this.compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "mailbox-compactor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compact, COMPACTION_INTERVAL_SECONDS, COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    private Shard shardFor(String username) {
+        return shards[Math.floorMod(username.hashCode(), shards.length)];
+    }
+
+    @Override
+    public void append(String username, String message) {
+        try {
+            shardFor(username).append(username, message);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    @Override
+    public List<String> drain(String username, int maxMessages, int maxBytes) {
+        return shardFor(username).drain(username, maxMessages, maxBytes);
+    }
+
+    @Override
+    public int pendingCount(String username) {
+        return shardFor(username).pendingCount(username);
+    }
+
+    @Override
+    public long totalPending() {
+        long total = 0;
+        for (Shard shard : shards) {
+            total += shard.totalPending();
+        }
+        return total;
+    }
+
+    public void compact() {
+        for (Shard shard : shards) {
+            try {
+                shard.compact();
+            } catch (IOException e) {
+                Log.error("Compacting mailbox failed", e);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        compactor.shutdown();
+        for (Shard shard : shards) {
+            shard.close();
+        }
+    }
+
+    private static long pointer(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private static int segmentOf(long pointer) {
+        return (int) (pointer >>> 32);
+    }
+
+    private static int offsetOf(long pointer) {
+        return (int) pointer;
+    }
+
+    private static class Segment {
+        final int sequence;
+        final Path path;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        int writePosition = 0;
+        int liveRecords = 0;
+        long liveBytes = 0;
+
+        Segment(int sequence, Path path, int size) throws IOException {
+            this.sequence = sequence;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.error("Closing mailbox segment failed", e);
+            }
+        }
+    }
+
+    private static class Chain {
+        long head;
+        long tail;
+        int count;
+    }
+
+    private static class Shard {
+        private final Path directory;
+        private final int shardId;
+        private final int segmentSize;
+        private final ReentrantLock lock = new ReentrantLock();
+        private final TreeMap<Integer, Segment> segments = new TreeMap<>();
+        private final Map<String, Chain> chains = new HashMap<>();
+        private Segment active;
+
+        Shard(Path directory, int shardId, int segmentSize) throws IOException {
+            this.directory = directory;
+            this.shardId = shardId;
+            this.segmentSize = segmentSize;
+            recover();
+            if (active == null) {
+                active = openSegment(0);
+            }
+        }
+
+        private Segment openSegment(int sequence) throws IOException {
+            Segment segment = new Segment(sequence, directory.resolve("shard-" + shardId + "-" + sequence + ".log"), segmentSize);
+            segments.put(sequence, segment);
+            return segment;
+        }
+
+        /**
+         * Rebuilds the chains from the segment files. Messages are drained oldest first, so the
+         * pending records of a user are always the end of their chain and the first one found
+         * is the head. The next pointers are written again from the scan, as the pages of a
+         * record and of the tail that links to it may not both have reached the disk before a
+         * crash.
+         */
+        private void recover() throws IOException {
+            String prefix = "shard-" + shardId + "-";
+            List<Integer> sequences = new ArrayList<>();
+            try (Stream<Path> files = Files.list(directory)) {
+                files.map(path -> path.getFileName().toString())
+                        .filter(name -> name.startsWith(prefix) && name.endsWith(".log"))
+                        .forEach(name -> sequences.add(Integer.parseInt(name.substring(prefix.length(), name.length() - 4))));
+            }
+            sequences.sort(null);
+            for (int sequence : sequences) {
+                Segment segment = openSegment(sequence);
+                MappedByteBuffer buffer = segment.buffer;
+                int offset = 0;
+                int length;
+                while (offset + RECORD_HEADER <= segmentSize && (length = buffer.getInt(offset)) > 0) {
+                    if (buffer.get(offset + STATE_OFFSET) == PENDING) {
+                        String username = readUsername(buffer, offset);
+                        Chain chain = chains.computeIfAbsent(username, key -> new Chain());
+                        long recordPointer = pointer(sequence, offset);
+                        if (chain.count == 0) {
+                            chain.head = recordPointer;
+                        } else {
+                            link(chain.tail, recordPointer);
+                        }
+                        chain.tail = recordPointer;
+                        chain.count++;
+                        segment.liveRecords++;
+                        segment.liveBytes += length;
+                    }
+                    offset += length;
+                }
+                segment.writePosition = offset;
+                active = segment;
+            }
+            for (Chain chain : chains.values()) {
+                link(chain.tail, NO_RECORD);
+            }
+        }
+
+        /**
+         * Points a record's next at another record. Only called under the lock.
+         */
+        private void link(long from, long to) {
+            segments.get(segmentOf(from)).buffer.putLong(offsetOf(from) + NEXT_OFFSET, to);
+        }
+
+        void append(String username, String message) throws IOException {
+            byte[] user = username.getBytes(StandardCharsets.UTF_8);
+            byte[] body = message.getBytes(StandardCharsets.UTF_8);
+            if (user.length > MAX_USERNAME_BYTES) {
+                throw new IllegalArgumentException("Username of " + user.length + " bytes is too long for the mailbox");
+            }
+            int length = RECORD_HEADER + user.length + body.length;
+            if (length > segmentSize) {
+                throw new IllegalArgumentException("Message of " + body.length + " bytes does not fit in a mailbox segment");
+            }
+            lock.lock();
+            try {
+                long recordPointer = reserve(length);
+                int offset = offsetOf(recordPointer);
+                MappedByteBuffer buffer = active.buffer;
+                buffer.put(offset + STATE_OFFSET, PENDING);
+                buffer.putLong(offset + NEXT_OFFSET, NO_RECORD);
+                buffer.putShort(offset + NEXT_OFFSET + 8, (short) user.length);
+                buffer.put(offset + NEXT_OFFSET + 10, user);
+                buffer.putInt(offset + NEXT_OFFSET + 10 + user.length, body.length);
+                buffer.put(offset + RECORD_HEADER + user.length, body);
+                buffer.putInt(offset, length);
+
+                Chain chain = chains.computeIfAbsent(username, key -> new Chain());
+                if (chain.count == 0) {
+                    chain.head = recordPointer;
+                } else {
+                    link(chain.tail, recordPointer);
+                }
+                chain.tail = recordPointer;
+                chain.count++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        List<String> drain(String username, int maxMessages, int maxBytes) {
+            List<String> drained = new ArrayList<>();
+            int bytes = 0;
+            lock.lock();
+            try {
+                Chain chain = chains.get(username);
+                while (chain != null && chain.count > 0 && drained.size() < maxMessages) {
+                    Segment segment = segments.get(segmentOf(chain.head));
+                    int offset = offsetOf(chain.head);
+                    MappedByteBuffer buffer = segment.buffer;
+                    int length = messageLength(buffer, offset);
+                    if (!drained.isEmpty() && bytes + length > maxBytes) {
+                        break;
+                    }
+                    bytes += length;
+                    drained.add(readMessage(buffer, offset));
+                    buffer.put(offset + STATE_OFFSET, DELIVERED);
+                    segment.liveRecords--;
+                    segment.liveBytes -= buffer.getInt(offset);
+                    chain.head = buffer.getLong(offset + NEXT_OFFSET);
+                    chain.count--;
+                }
+                if (chain != null && chain.count == 0) {
+                    chains.remove(username);
+                }
+            } finally {
+                lock.unlock();
+            }
+            return drained;
+        }
+
+        int pendingCount(String username) {
+            lock.lock();
+            try {
+                Chain chain = chains.get(username);
+                return chain == null ? 0 : chain.count;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        long totalPending() {
+            lock.lock();
+            try {
+                long total = 0;
+                for (Segment segment : segments.values()) {
+                    total += segment.liveRecords;
+                }
+                return total;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Makes room for a record in the segment being written, starting a new one when it is
+         * full, and counts it as pending there. Only called under the lock.
+         */
+        private long reserve(int length) throws IOException {
+            if (active.writePosition + length > segmentSize) {
+                active = openSegment(active.sequence + 1);
+            }
+            long recordPointer = pointer(active.sequence, active.writePosition);
+            active.writePosition += length;
+            active.liveRecords++;
+            active.liveBytes += length;
+            return recordPointer;
+        }
+
+        /**
+         * Copies the chains of the users with pending records in the segment to the segment being
+         * written, whole chains so each user's records are still found in order by recover. The
+         * copies are flushed before the originals are marked delivered, so a crash in between
+         * sends some messages twice rather than losing them.
+         */
+        private void evacuate(Segment segment) throws IOException {
+            Set<String> users = new LinkedHashSet<>();
+            for (int offset = 0; offset < segment.writePosition; offset += segment.buffer.getInt(offset)) {
+                if (segment.buffer.get(offset + STATE_OFFSET) == PENDING) {
+                    users.add(readUsername(segment.buffer, offset));
+                }
+            }
+            List<Long> originals = new ArrayList<>();
+            Set<Segment> written = new HashSet<>();
+            for (String username : users) {
+                Chain chain = chains.get(username);
+                long from = chain.head;
+                long previous = NO_RECORD;
+                for (int i = 0; i < chain.count; i++) {
+                    Segment source = segments.get(segmentOf(from));
+                    int offset = offsetOf(from);
+                    int length = source.buffer.getInt(offset);
+                    long copy = reserve(length);
+                    int copyOffset = offsetOf(copy);
+                    active.buffer.put(copyOffset + STATE_OFFSET, source.buffer, offset + STATE_OFFSET, length - STATE_OFFSET);
+                    active.buffer.putLong(copyOffset + NEXT_OFFSET, NO_RECORD);
+                    active.buffer.putInt(copyOffset, length);
+                    written.add(active);
+                    if (previous == NO_RECORD) {
+                        chain.head = copy;
+                    } else {
+                        link(previous, copy);
+                    }
+                    previous = copy;
+                    originals.add(from);
+                    from = source.buffer.getLong(offset + NEXT_OFFSET);
+                }
+                chain.tail = previous;
+            }
+            for (Segment target : written) {
+                target.buffer.force();
+            }
+            for (long original : originals) {
+                Segment source = segments.get(segmentOf(original));
+                int offset = offsetOf(original);
+                source.buffer.put(offset + STATE_OFFSET, DELIVERED);
+                source.liveRecords--;
+                source.liveBytes -= source.buffer.getInt(offset);
+            }
+        }
+
+        /**
+         * Moves what is still pending out of mostly delivered segments, deletes every segment
+         * other than the one being written whose records have all been delivered, and flushes
+         * the one being written.
+         */
+        void compact() throws IOException {
+            lock.lock();
+            try {
+                for (Segment segment : List.copyOf(segments.values())) {
+                    if (segment != active && segment.liveRecords > 0 && segment.liveBytes * 4 < segmentSize) {
+                        evacuate(segment);
+                    }
+                }
+                List<Segment> delivered = new ArrayList<>();
+                for (Segment segment : segments.values()) {
+                    if (segment != active && segment.liveRecords == 0) {
+                        delivered.add(segment);
+                    }
+                }
+                for (Segment segment : delivered) {
+                    segments.remove(segment.sequence);
+                    segment.close();
+                    Files.deleteIfExists(segment.path);
+                }
+                active.buffer.force();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        void close() {
+            lock.lock();
+            try {
+                for (Segment segment : segments.values()) {
+                    segment.buffer.force();
+                    segment.close();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private static String readUsername(MappedByteBuffer buffer, int offset) {
+            int length = buffer.getShort(offset + NEXT_OFFSET + 8) & 0xffff;
+            byte[] user = new byte[length];
+            buffer.get(offset + NEXT_OFFSET + 10, user);
+            return new String(user, StandardCharsets.UTF_8);
+        }
+
+        private static int messageLength(MappedByteBuffer buffer, int offset) {
+            int userLength = buffer.getShort(offset + NEXT_OFFSET + 8) & 0xffff;
+            return buffer.getInt(offset + NEXT_OFFSET + 10 + userLength);
+        }
+
+        private static String readMessage(MappedByteBuffer buffer, int offset) {
+            int userLength = buffer.getShort(offset + NEXT_OFFSET + 8) & 0xffff;
+            int bodyLength = buffer.getInt(offset + NEXT_OFFSET + 10 + userLength);
+            byte[] body = new byte[bodyLength];
+            buffer.get(offset + RECORD_HEADER + userLength, body);
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+}
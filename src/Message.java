@@ -1,20 +1,62 @@
-import java.util.Date;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
 
 public class Message {
+    // The same text Date.toString gives, e.g. "Sun Oct 18 03:24:00 UTC 2026"
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormatter.ofPattern("EEE MMM dd HH:mm:ss zzz yyyy", Locale.US)
+            .withZone(ZoneId.systemDefault());
+
+    private record FormattedSecond(long epochSecond, String text) {
+    }
+
+    // Every message sent within the same second shares one formatted date
+    private static volatile FormattedSecond lastSecond = new FormattedSecond(Long.MIN_VALUE, "");
+
     public final String message;
     public final String sender;
+    // Null for a broadcast, whose text is the same for every recipient
     public final String receiver;
-    public final String dateSent;
+    public final long sentMillis;
+    private String text;
 
     public Message(String message, String sender, String receiver) {
         this.message = message;
         this.sender = sender;
         this.receiver = receiver;
-        this.dateSent = new Date().toString();
+        this.sentMillis = System.currentTimeMillis();
+    }
+
+    public static Message broadcast(String message, String sender) {
+        return new Message(message, sender, null);
+    }
+
+    static String formatDate(long millis) {
+        long epochSecond = Math.floorDiv(millis, 1000);
+        FormattedSecond formatted = lastSecond;
+        if (formatted.epochSecond != epochSecond) {
+            formatted = new FormattedSecond(epochSecond, DATE_FORMAT.format(Instant.ofEpochSecond(epochSecond)));
+            lastSecond = formatted;
+        }
+        return formatted.text;
+    }
+
+    public String getDateSent() {
+        return formatDate(sentMillis);
     }
 
+    /**
+     * The text pushed to the receiver. Built on first use and kept, so a broadcast formats it
+     * once for all of its recipients.
+     */
     @Override
     public String toString() {
-        return String.format("%s from %s: %s", this.dateSent, this.sender, this.message);
+        String built = text;
+        if (built == null) {
+            built = getDateSent() + " from " + sender + ": " + message;
+            text = built;
+        }
+        return built;
     }
 }
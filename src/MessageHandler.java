@@ -1,33 +1,366 @@
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Frame codec for one blocking connection. A frame is a 4 byte length prefix counting the UTF-8
+ * bytes of the payload, followed by the payload. The read and write buffers are direct and kept
+ * for the life of the connection, so sending or receiving a frame does not allocate unless a
+ * String is actually asked for.
+ *
+ * Once compression has been negotiated, payloads above FrameCompression.THRESHOLD are sent
+ * deflated. Compressed frames are inflated on receipt whether or not this side asked for them.
+ */
 public class MessageHandler {
+    public static final int HEADER_LENGTH = 4;
+    // Set in the length prefix of frames the server pushes on its own, as opposed to command replies
+    public static final int PUSH_FLAG = 0x80000000;
+    // Set together with PUSH_FLAG on a push carrying several messages, see BinaryProtocol.batch
+    public static final int BATCH_FLAG = 0x40000000;
+    // Set on a frame whose payload is deflated, see FrameCompression
+    public static final int COMPRESSED_FLAG = 0x20000000;
+    private static final int FLAGS = PUSH_FLAG | BATCH_FLAG | COMPRESSED_FLAG;
+    public static final int MAX_FRAME_LENGTH = 1 << 20;
+    private static final int INITIAL_BUFFER_SIZE = 1024;
 
-    public static String receiveMessageOverSocket(Socket clientSocket) {
-        String response = null;
+    private final SocketChannel channel;
+    private ByteBuffer readBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+    private ByteBuffer writeBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+    private final ByteBuffer[] gather = new ByteBuffer[2];
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder();
+    private int lastFrameFlags;
+    private volatile boolean compression = false;
+    // Replies and pushes may be written from different threads
+    private final ReentrantLock writeLock = new ReentrantLock();
+    // Null on the client side
+    private final ServerMetrics metrics;
+
+    public MessageHandler(SocketChannel channel) {
+        this(channel, null);
+    }
+
+    public MessageHandler(SocketChannel channel, ServerMetrics metrics) {
+        this.channel = channel;
+        this.metrics = metrics;
+        this.readBuffer.flip();
+        this.gather[0] = ByteBuffer.allocateDirect(HEADER_LENGTH);
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Compresses large payloads from now on. Called once the peer has agreed to it.
+     */
+    public void enableCompression() {
+        compression = true;
+    }
+
+    // ===== Reading =====
+
+    /**
+     * Returns the payload of the next frame as a view into the read buffer. The view is only
+     * valid until the next read on this connection. A compressed payload is returned inflated,
+     * in a buffer of its own.
+     */
+    public ByteBuffer receiveFrame() throws IOException {
+        fill(HEADER_LENGTH);
+        int header = readBuffer.getInt();
+        int length = header & ~FLAGS;
+        lastFrameFlags = header & FLAGS;
+        if (length > MAX_FRAME_LENGTH) {
+            throw new IOException("Frame of " + length + " bytes is too large");
+        }
+        fill(length);
+        if (metrics != null) {
+            metrics.frameIn(HEADER_LENGTH + length);
+        }
+        ByteBuffer payload = readBuffer.slice(readBuffer.position(), length);
+        readBuffer.position(readBuffer.position() + length);
+        if ((header & COMPRESSED_FLAG) != 0) {
+            return FrameCompression.inflate(payload);
+        }
+        return payload;
+    }
+
+    /**
+     * Whether the frame last returned by receiveFrame had PUSH_FLAG set.
+     */
+    public boolean wasPush() {
+        return (lastFrameFlags & PUSH_FLAG) != 0;
+    }
+
+    public String receiveMessage() throws IOException {
+        return decode(receiveFrame());
+    }
+
+    /**
+     * Reads a frame on the client side, where replies and pushes share the control socket.
+     */
+    public Frame receiveClientFrame() throws IOException {
+        ByteBuffer view = receiveFrame();
+        ByteBuffer payload = ByteBuffer.allocate(view.remaining()).put(view).flip();
+        return new Frame(wasPush(), (lastFrameFlags & BATCH_FLAG) != 0, payload);
+    }
+
+    private void fill(int needed) throws IOException {
+        if (readBuffer.remaining() >= needed) {
+            return;
+        }
+        readBuffer.compact();
+        if (readBuffer.capacity() < needed) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(Math.max(needed, readBuffer.capacity() * 2));
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+        while (readBuffer.position() < needed) {
+            if (channel.read(readBuffer) == -1) {
+                readBuffer.flip();
+                throw new EOFException();
+            }
+        }
+        readBuffer.flip();
+    }
+
+    public String decode(ByteBuffer payload) throws CharacterCodingException {
+        return decoder.decode(payload).toString();
+    }
+
+    // ===== Writing =====
+
+    public void sendMessage(String msg) throws IOException {
+        sendFrame(msg, 0);
+    }
+
+    public void sendPush(String msg) throws IOException {
+        sendFrame(msg, PUSH_FLAG);
+    }
+
+    /**
+     * Encodes the header and payload into the write buffer and sends them with one write.
+     */
+    private void sendFrame(String msg, int flags) throws IOException {
+        writeLock.lock();
         try {
-            DataInputStream dis = new DataInputStream(clientSocket.getInputStream());
-            Integer responseLength = dis.readInt();
-            response = new String(dis.readNBytes(responseLength));
-        } catch (IOException e) {
-            e.printStackTrace();
+            writeBuffer.clear();
+            writeBuffer.position(HEADER_LENGTH);
+            encodeInto(msg);
+            int length = writeBuffer.position() - HEADER_LENGTH;
+            if (length > MAX_FRAME_LENGTH) {
+                throw new IOException(tooLarge(length));
+            }
+            if (compression && length >= FrameCompression.THRESHOLD) {
+                ByteBuffer compressed = FrameCompression.deflate(writeBuffer.slice(HEADER_LENGTH, length));
+                if (compressed != null) {
+                    writeFrame(compressed, flags | COMPRESSED_FLAG);
+                    return;
+                }
+            }
+            writeBuffer.putInt(0, length | flags);
+            writeBuffer.flip();
+            frameOut(writeBuffer.remaining());
+            while (writeBuffer.hasRemaining()) {
+                channel.write(writeBuffer);
+            }
+        } finally {
+            writeLock.unlock();
         }
-        assert(response != null);
-        return response;
     }
 
-    public static void sendMessageOverSocket(Socket clientSocket, String msg) {
+    private void encodeInto(String msg) throws CharacterCodingException {
+        CharBuffer chars = CharBuffer.wrap(msg);
+        encoder.reset();
+        while (true) {
+            CoderResult result = encoder.encode(chars, writeBuffer, true);
+            if (result.isOverflow()) {
+                growWriteBuffer();
+                continue;
+            }
+            if (result.isError()) {
+                result.throwException();
+            }
+            if (encoder.flush(writeBuffer).isOverflow()) {
+                growWriteBuffer();
+                continue;
+            }
+            return;
+        }
+    }
+
+    private void growWriteBuffer() {
+        ByteBuffer larger = ByteBuffer.allocateDirect(writeBuffer.capacity() * 2);
+        writeBuffer.flip();
+        larger.put(writeBuffer);
+        writeBuffer = larger;
+    }
+
+    /**
+     * Sends an already encoded payload, for example one shared by every recipient of a broadcast.
+     * Header and payload go out together in one gathering write and the payload is not copied
+     * unless it is compressed.
+     */
+    public void sendFrame(ByteBuffer payload, int flags) throws IOException {
+        if (payload.remaining() > MAX_FRAME_LENGTH) {
+            throw new IOException(tooLarge(payload.remaining()));
+        }
+        if (compression) {
+            ByteBuffer compressed = FrameCompression.deflate(payload);
+            if (compressed != null) {
+                writeFrame(compressed, flags | COMPRESSED_FLAG);
+                return;
+            }
+        }
+        writeFrame(payload, flags);
+    }
+
+    private void writeFrame(ByteBuffer payload, int flags) throws IOException {
+        writeLock.lock();
+        try {
+            ByteBuffer header = gather[0];
+            header.clear();
+            header.putInt(payload.remaining() | flags).flip();
+            gather[1] = payload.duplicate();
+            frameOut(HEADER_LENGTH + payload.remaining());
+            while (header.hasRemaining() || gather[1].hasRemaining()) {
+                channel.write(gather);
+            }
+            gather[1] = null;
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    /**
+     * Sends a frame built by encodeFrame, header included.
+     */
+    public void sendEncodedFrame(ByteBuffer frame) throws IOException {
+        writeLock.lock();
         try {
-            DataOutputStream dos = new DataOutputStream(clientSocket.getOutputStream());
-            dos.writeInt(msg.length());
-            dos.writeBytes(msg);
-        } catch (IOException e) {
-            e.printStackTrace();
+            ByteBuffer view = frame.duplicate();
+            frameOut(view.remaining());
+            while (view.hasRemaining()) {
+                channel.write(view);
+            }
+        } finally {
+            writeLock.unlock();
         }
     }
 
+    /**
+     * Nothing larger than MAX_FRAME_LENGTH is ever written, as the peer's decodeFrame would drop
+     * the connection over it. Counts the payload before compression, which is what the peer
+     * checks once it has inflated it.
+     */
+    private static String tooLarge(int length) {
+        return "Frame of " + length + " bytes is larger than " + MAX_FRAME_LENGTH;
+    }
+
+    private void frameOut(int bytes) {
+        if (metrics != null) {
+            metrics.frameOut(bytes);
+        }
+    }
+
+    // ===== Helpers for the selector based server =====
+
+    /**
+     * Builds a complete frame into a buffer ready to be written to a channel.
+     */
+    public static ByteBuffer encodeFrame(String msg, boolean push) {
+        return encodeFrame(ByteBuffer.wrap(msg.getBytes(StandardCharsets.UTF_8)), push);
+    }
+
+    public static ByteBuffer encodeFrame(ByteBuffer payload, boolean push) {
+        return encodeFrame(payload, push ? PUSH_FLAG : 0);
+    }
+
+    /**
+     * Like encodeFrame, but deflates a payload that is large enough to be worth it.
+     */
+    public static ByteBuffer encodeFrame(ByteBuffer payload, int flags, boolean compress) {
+        checkLength(payload.remaining());
+        if (compress) {
+            ByteBuffer compressed = FrameCompression.deflate(payload);
+            if (compressed != null) {
+                return encodeFrame(compressed, flags | COMPRESSED_FLAG);
+            }
+        }
+        return encodeFrame(payload, flags);
+    }
+
+    /**
+     * Throws IllegalArgumentException for a payload over MAX_FRAME_LENGTH rather than building a
+     * frame the peer would refuse.
+     */
+    public static ByteBuffer encodeFrame(ByteBuffer payload, int flags) {
+        int length = payload.remaining();
+        checkLength(length);
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_LENGTH + length);
+        frame.putInt(length | flags);
+        frame.put(payload.duplicate());
+        return frame.flip();
+    }
+
+    private static void checkLength(int length) {
+        if (length > MAX_FRAME_LENGTH) {
+            throw new IllegalArgumentException(tooLarge(length));
+        }
+    }
+
+    /**
+     * Takes one complete frame off the front of a read buffer (in read mode) and returns its
+     * payload as a view into that buffer, or returns null and leaves the buffer untouched when
+     * the frame has not fully arrived yet. Throws when the header announces more than
+     * MAX_FRAME_LENGTH, as the peer can not be trusted to send a sane length.
+     */
+    public static ByteBuffer decodeFrame(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < HEADER_LENGTH) {
+            return null;
+        }
+        int length = frameLength(buffer.getInt(buffer.position()));
+        if (length > MAX_FRAME_LENGTH) {
+            throw new IOException("Frame of " + length + " bytes is too large");
+        }
+        if (buffer.remaining() < HEADER_LENGTH + length) {
+            return null;
+        }
+        ByteBuffer payload = buffer.slice(buffer.position() + HEADER_LENGTH, length);
+        buffer.position(buffer.position() + HEADER_LENGTH + length);
+        return payload;
+    }
+
+    /**
+     * Like decodeFrame, but a compressed payload is inflated into a buffer of its own.
+     */
+    public static ByteBuffer decodeInflatedFrame(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        ByteBuffer payload = decodeFrame(buffer);
+        if (payload == null || (buffer.getInt(start) & COMPRESSED_FLAG) == 0) {
+            return payload;
+        }
+        return FrameCompression.inflate(payload);
+    }
+
+    /**
+     * The payload length in a frame header, without the flags. Never negative.
+     */
+    public static int frameLength(int header) {
+        return header & ~FLAGS;
+    }
+
+    public static String decodePayload(ByteBuffer payload) {
+        return StandardCharsets.UTF_8.decode(payload).toString();
+    }
 
 }
@@ -0,0 +1,244 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Named counters, gauges and histograms, readable over JMX and as plain text in the Prometheus
+ * exposition format. Registering only happens at startup; the code being measured holds on to
+ * the LongAdder or Histogram it was given, so recording never goes through the registry. Values
+ * that a component already counts are registered as suppliers reading its getters.
+ */
+public class Metrics implements DynamicMBean {
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    private enum Type {
+        COUNTER,
+        GAUGE,
+        SUMMARY
+    }
+
+    private static class Family {
+        final String name;
+        final String help;
+        final Type type;
+        // Histograms are exposed divided by this, e.g. nanoseconds as seconds
+        final double scale;
+        final List<Member> members = new ArrayList<>();
+
+        Family(String name, String help, Type type, double scale) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+            this.scale = scale;
+        }
+    }
+
+    private record Member(String label, String labelValue, LongSupplier value, Histogram histogram) {
+        String labels(String extra) {
+            List<String> pairs = new ArrayList<>();
+            if (label != null) {
+                pairs.add(label + "=\"" + labelValue + "\"");
+            }
+            if (extra != null) {
+                pairs.add(extra);
+            }
+            return pairs.isEmpty() ? "" : "{" + String.join(",", pairs) + "}";
+        }
+    }
+
+    private final String prefix;
+    private final Map<String, Family> families = new LinkedHashMap<>();
+
+    public Metrics(String prefix) {
+        this.prefix = prefix;
+    }
+
+    // ===== Registering =====
+
+    private synchronized Family family(String name, String help, Type type, double scale) {
+        Family family = families.computeIfAbsent(prefix + name, key -> new Family(key, help, type, scale));
+        if (family.type != type) {
+            throw new IllegalArgumentException(name + " is already registered as a " + family.type);
+        }
+        return family;
+    }
+
+    private synchronized void add(Family family, Member member) {
+        family.members.add(member);
+    }
+
+    public LongAdder counter(String name, String help) {
+        LongAdder counter = new LongAdder();
+        counter(name, help, counter::sum);
+        return counter;
+    }
+
+    public void counter(String name, String help, LongSupplier value) {
+        add(family(name, help, Type.COUNTER, 1), new Member(null, null, value, null));
+    }
+
+    public void gauge(String name, String help, LongSupplier value) {
+        add(family(name, help, Type.GAUGE, 1), new Member(null, null, value, null));
+    }
+
+    public Histogram histogram(String name, String help, double scale) {
+        return histogram(name, help, scale, null, null);
+    }
+
+    /**
+     * One histogram of a family told apart by a label, such as latency by command.
+     */
+    public Histogram histogram(String name, String help, double scale, String label, String labelValue) {
+        Histogram histogram = new Histogram();
+        add(family(name, help, Type.SUMMARY, scale), new Member(label, labelValue, null, histogram));
+        return histogram;
+    }
+
+    // ===== Text =====
+
+    public synchronized String toText() {
+        StringBuilder out = new StringBuilder();
+        for (Family family : families.values()) {
+            out.append("# HELP ").append(family.name).append(' ').append(family.help).append('\n');
+            out.append("# TYPE ").append(family.name).append(' ').append(family.type.name().toLowerCase()).append('\n');
+            for (Member member : family.members) {
+                if (member.histogram == null) {
+                    out.append(family.name).append(member.labels(null)).append(' ').append(member.value.getAsLong()).append('\n');
+                    continue;
+                }
+                Histogram.Snapshot snapshot = member.histogram.snapshot();
+                for (double quantile : QUANTILES) {
+                    out.append(family.name).append(member.labels("quantile=\"" + quantile + "\"")).append(' ')
+                            .append(snapshot.getValueAtQuantile(quantile) / family.scale).append('\n');
+                }
+                out.append(family.name).append("_sum").append(member.labels(null)).append(' ')
+                        .append(snapshot.getSum() / family.scale).append('\n');
+                out.append(family.name).append("_count").append(member.labels(null)).append(' ')
+                        .append(snapshot.getCount()).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    /**
+     * Serves toText at http://127.0.0.1:port/metrics on a daemon thread. Only bound to loopback,
+     * so reading it needs access to the machine.
+     */
+    public void serveText(int port) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = toText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.setExecutor(Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metrics-http");
+            thread.setDaemon(true);
+            return thread;
+        }));
+        server.start();
+    }
+
+    // ===== JMX =====
+
+    public void registerMBean(String objectName) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(objectName));
+    }
+
+    /**
+     * Every value as a JMX attribute. Counters and gauges are named after their metric, with the
+     * label value appended after a dot when there is one; histograms get one attribute per
+     * statistic, such as command_seconds.message.p99.
+     */
+    private synchronized Map<String, Supplier<Object>> attributes() {
+        Map<String, Supplier<Object>> attributes = new LinkedHashMap<>();
+        for (Family family : families.values()) {
+            String base = family.name.substring(prefix.length());
+            for (Member member : family.members) {
+                String name = member.label == null ? base : base + "." + member.labelValue;
+                if (member.histogram == null) {
+                    attributes.put(name, () -> member.value.getAsLong());
+                    continue;
+                }
+                Histogram histogram = member.histogram;
+                double scale = family.scale;
+                attributes.put(name + ".count", () -> histogram.snapshot().getCount());
+                attributes.put(name + ".p50", () -> histogram.snapshot().getValueAtQuantile(0.5) / scale);
+                attributes.put(name + ".p99", () -> histogram.snapshot().getValueAtQuantile(0.99) / scale);
+                attributes.put(name + ".p999", () -> histogram.snapshot().getValueAtQuantile(0.999) / scale);
+                attributes.put(name + ".max", () -> histogram.snapshot().getMax() / scale);
+            }
+        }
+        return attributes;
+    }
+
+    @Override
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Supplier<Object> value = attributes().get(attribute);
+        if (value == null) {
+            throw new AttributeNotFoundException(attribute);
+        }
+        return value.get();
+    }
+
+    @Override
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException(attribute.getName() + " is read only");
+    }
+
+    @Override
+    public AttributeList getAttributes(String[] names) {
+        Map<String, Supplier<Object>> attributes = attributes();
+        AttributeList list = new AttributeList();
+        for (String name : names) {
+            Supplier<Object> value = attributes.get(name);
+            if (value != null) {
+                list.add(new Attribute(name, value.get()));
+            }
+        }
+        return list;
+    }
+
+    @Override
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+
+    @Override
+    public Object invoke(String actionName, Object[] params, String[] signature) {
+        throw new UnsupportedOperationException("No operations");
+    }
+
+    @Override
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> infos = new ArrayList<>();
+        attributes().forEach((name, value) ->
+                infos.add(new MBeanAttributeInfo(name, value.get().getClass().getName(), name, true, false, false)));
+        return new MBeanInfo(Metrics.class.getName(), "Chat server metrics", infos.toArray(new MBeanAttributeInfo[0]), null, null, null);
+    }
+}
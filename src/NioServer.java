@@ -0,0 +1,199 @@
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking server mode. A fixed number of event loop threads each own a Selector and all
+ * of the connections assigned to them, so the thread count no longer grows with the number
+ * of connected clients.
+ */
+public class NioServer {
+    private static final long SELECT_TIMEOUT = 1000;
+
+    private final ServerSocketChannel serverChannel;
+    private final int acceptors;
+    private final HandshakeLimiter handshakeLimiter;
+    private final CommandHandler commandHandler;
+    private final EventLoop[] eventLoops;
+    private final AtomicInteger nextEventLoop = new AtomicInteger();
+
+    /**
+     * The server channel is registered with the first acceptors event loops, which all accept
+     * from it and spread the new connections over every event loop.
+     */
+    public NioServer(ServerSocketChannel serverChannel, int acceptors, HandshakeLimiter handshakeLimiter,
+                     CommandHandler commandHandler, int eventLoopCount) throws IOException {
+        this.serverChannel = serverChannel;
+        this.acceptors = Math.max(1, Math.min(acceptors, eventLoopCount));
+        this.handshakeLimiter = handshakeLimiter;
+        this.commandHandler = commandHandler;
+        this.eventLoops = new EventLoop[eventLoopCount];
+        for (int i = 0; i < eventLoopCount; i++) {
+            eventLoops[i] = new EventLoop();
+        }
+    }
+
+    public void run() throws IOException {
+        serverChannel.configureBlocking(false);
+        for (int i = 0; i < acceptors; i++) {
+            serverChannel.register(eventLoops[i].selector, SelectionKey.OP_ACCEPT);
+        }
+        Log.info("===== Server is running with " + eventLoops.length + " event loops and " + acceptors + " acceptors =====");
+
+        for (int i = 1; i < eventLoops.length; i++) {
+            new Thread(eventLoops[i], "event-loop-" + i).start();
+        }
+        Thread.currentThread().setName("event-loop-0");
+        eventLoops[0].run();
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        SocketChannel clientChannel;
+        while ((clientChannel = serverChannel.accept()) != null) {
+            Log.debug("===== New client socket=====");
+            commandHandler.getMetrics().connectionAccepted();
+            EventLoop eventLoop = eventLoops[Math.floorMod(nextEventLoop.getAndIncrement(), eventLoops.length)];
+            SocketChannel channel = clientChannel;
+            HandshakeLimiter.Handshake handshake = handshakeLimiter.begin(clientChannel, () -> eventLoop.execute(() -> eventLoop.expire(channel)));
+            if (handshake == null) {
+                continue;
+            }
+            clientChannel.configureBlocking(false);
+            clientChannel.socket().setTcpNoDelay(true);
+            eventLoop.register(clientChannel, handshake);
+        }
+    }
+
+    class EventLoop implements Runnable {
+        private final Selector selector;
+        private final Queue<NioSession> pendingSessions = new ConcurrentLinkedQueue<>();
+        private final Queue<NioSession> sessionsWithPushes = new ConcurrentLinkedQueue<>();
+        private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel, HandshakeLimiter.Handshake handshake) {
+            pendingSessions.add(new NioSession(channel, handshake, commandHandler, this));
+            selector.wakeup();
+        }
+
+        void schedulePushes(NioSession session) {
+            sessionsWithPushes.add(session);
+            selector.wakeup();
+        }
+
+        /**
+         * Closes a connection whose handshake deadline passed, through its session once it has one
+         * so the session is closed like any other.
+         */
+        void expire(SocketChannel channel) {
+            SelectionKey key = channel.keyFor(selector);
+            if (key != null && key.attachment() instanceof NioSession session) {
+                session.close();
+                return;
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.error("Closing connection failed", e);
+            }
+        }
+
+        /**
+         * Runs a task on this event loop's thread.
+         */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                try {
+                    selector.select(SELECT_TIMEOUT);
+                    registerPendingChannels();
+                    flushPendingPushes();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        handleKey(key);
+                    }
+                    runTasks();
+                } catch (IOException | RuntimeException e) {
+                    // Whatever went wrong, the loop keeps serving every other session
+                    Log.error("Event loop failed", e);
+                }
+            }
+        }
+
+        private void registerPendingChannels() {
+            NioSession session;
+            while ((session = pendingSessions.poll()) != null) {
+                try {
+                    session.bindKey(session.getChannel().register(selector, SelectionKey.OP_READ, session));
+                    commandHandler.getMetrics().connectionOpened();
+                } catch (ClosedChannelException e) {
+                    // Closed by the handshake deadline before it was registered
+                }
+            }
+        }
+
+        private void flushPendingPushes() {
+            NioSession session;
+            while ((session = sessionsWithPushes.poll()) != null) {
+                try {
+                    session.flushPendingPushes();
+                } catch (IOException e) {
+                    session.close();
+                }
+            }
+        }
+
+        private void handleKey(SelectionKey key) {
+            try {
+                if (!key.isValid()) {
+                    return;
+                }
+                if (key.isAcceptable()) {
+                    accept((ServerSocketChannel) key.channel());
+                    return;
+                }
+                NioSession session = (NioSession) key.attachment();
+                if (key.isReadable()) {
+                    session.onReadable();
+                }
+                if (key.isValid() && key.isWritable()) {
+                    session.onWritable();
+                }
+            } catch (IOException e) {
+                if (key.attachment() instanceof NioSession session) {
+                    session.close();
+                }
+            } catch (RuntimeException e) {
+                // A bug or a frame nobody thought of; it only costs the connection that caused it
+                Log.error("Session failed", e);
+                if (key.attachment() instanceof NioSession session) {
+                    session.close();
+                }
+            }
+        }
+
+        private void runTasks() {
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                task.run();
+            }
+        }
+    }
+}
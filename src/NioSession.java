@@ -0,0 +1,522 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * State of one client connection owned by an {@link NioServer} event loop. Frames are fed in as
+ * they arrive and the phase decides what the next frame means, replacing the blocking
+ * handleLogin / handleActiveUser call chain of {@link ClientHandler}.
+ */
+public class NioSession implements PushChannel {
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    // Lets command frames be matched on their raw bytes without decoding them
+    private static final Map<ByteBuffer, String> COMMANDS = new HashMap<>();
+
+    static {
+        for (String command : new String[] {"MESSAGE", "BROADCAST", "WHOELSE", "WHOELSESINCE", "BLOCK", "UNBLOCK", "LOGOUT"}) {
+            COMMANDS.put(ByteBuffer.wrap(command.getBytes(StandardCharsets.UTF_8)), command);
+        }
+    }
+
+    // Sends the reply of a command that ran off the event loop
+    private interface Reply {
+        void send() throws IOException;
+    }
+
+    enum Phase {
+        HELLO,
+        USERNAME,
+        PASSWORD,
+        NEW_USER_PASSWORD,
+        COMMAND,
+        MESSAGE_DESTINATION,
+        MESSAGE_BODY,
+        BROADCAST_BODY,
+        WHOELSESINCE_TIME,
+        BLOCK_USER,
+        UNBLOCK_USER,
+        CLOSED
+    }
+
+    private final SocketChannel channel;
+    private final HandshakeLimiter.Handshake handshake;
+    private final CommandHandler commandHandler;
+    private final NioServer.EventLoop eventLoop;
+    private volatile SelectionKey key;
+    private ByteBuffer readBuffer = ByteBuffer.allocateDirect(INITIAL_BUFFER_SIZE);
+    private final Deque<ByteBuffer> writeQueue = new ArrayDeque<>();
+    // Filled by whichever thread delivers a message, moved to writeQueue by the event loop
+    private final OutboundQueue outboundQueue;
+    // Bytes sitting in writeQueue
+    private final AtomicLong writeQueueBytes = new AtomicLong();
+    private boolean closeAfterFlush = false;
+
+    private volatile Phase phase = Phase.HELLO;
+    private int protocolVersion = 1;
+    // Set before login, so before any delivery thread can push to this session
+    private boolean compression = false;
+    private String username;
+    private int passwordAttempts = 0;
+    private String messageDestination;
+    // The version 1 command being read and when its verb arrived
+    private String command;
+    private long commandStart;
+    private Profile clientProfile;
+    private IdleTimer.Handle idleTimeout;
+    // Set while a command runs on another thread; no further frames are read until it replies
+    private boolean commandRunning = false;
+
+    public NioSession(SocketChannel channel, HandshakeLimiter.Handshake handshake, CommandHandler commandHandler, NioServer.EventLoop eventLoop) {
+        this.channel = channel;
+        this.handshake = handshake;
+        this.commandHandler = commandHandler;
+        this.eventLoop = eventLoop;
+        this.outboundQueue = commandHandler.createOutboundQueue();
+    }
+
+    public SocketChannel getChannel() {
+        return channel;
+    }
+
+    public void bindKey(SelectionKey key) {
+        this.key = key;
+    }
+
+    public boolean isClosed() {
+        return phase == Phase.CLOSED;
+    }
+
+    public void onReadable() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read == -1) {
+            close();
+            return;
+        }
+        handleFrames();
+    }
+
+    private void handleFrames() throws IOException {
+        readBuffer.flip();
+        ByteBuffer frame;
+        while (phase != Phase.CLOSED && !commandRunning && (frame = MessageHandler.decodeInflatedFrame(readBuffer)) != null) {
+            if (idleTimeout != null) {
+                idleTimeout.touch();
+            }
+            commandHandler.getMetrics().frameIn(MessageHandler.HEADER_LENGTH + frame.remaining());
+            handleFrame(frame);
+        }
+        readBuffer.compact();
+        ensureCapacityForNextFrame();
+    }
+
+    private void ensureCapacityForNextFrame() throws IOException {
+        if (readBuffer.position() < MessageHandler.HEADER_LENGTH) {
+            return;
+        }
+        int frameLength = MessageHandler.frameLength(readBuffer.getInt(0));
+        if (frameLength > MessageHandler.MAX_FRAME_LENGTH) {
+            close();
+            return;
+        }
+        int needed = MessageHandler.HEADER_LENGTH + frameLength;
+        if (needed > readBuffer.capacity()) {
+            ByteBuffer larger = ByteBuffer.allocateDirect(needed);
+            readBuffer.flip();
+            larger.put(readBuffer);
+            readBuffer = larger;
+        }
+    }
+
+    public void onWritable() throws IOException {
+        flush();
+    }
+
+    /**
+     * The payload is a view into the read buffer; it is only decoded in the phases that need text.
+     */
+    private void handleFrame(ByteBuffer payload) throws IOException {
+        if (phase == Phase.HELLO) {
+            if (!handshake.complete()) {
+                close();
+                return;
+            }
+            // From here on the idle timeout takes over from the handshake deadline, so a client
+            // that stalls before logging in is closed too. Expiry is handed to the event loop so
+            // the close runs on the thread that owns the session
+            idleTimeout = commandHandler.getIdleTimer().register(() -> eventLoop.execute(() -> closeConnection("idle")));
+            String hello = MessageHandler.decodePayload(payload);
+            protocolVersion = BinaryProtocol.negotiateVersion(hello);
+            if (protocolVersion == BinaryProtocol.VERSION) {
+                compression = BinaryProtocol.negotiateCompression(hello);
+                send(BinaryProtocol.helloReply(compression));
+            }
+            promptUsername();
+            return;
+        }
+        if (phase == Phase.COMMAND && protocolVersion == BinaryProtocol.VERSION) {
+            if (BinaryProtocol.isLogout(payload)) {
+                close();
+                return;
+            }
+            if (!commandHandler.isClustered()) {
+                BinaryProtocol.handle(commandHandler, clientProfile, payload, this::send);
+                return;
+            }
+            ByteBuffer request = ByteBuffer.allocate(payload.remaining()).put(payload).flip();
+            Profile profile = clientProfile;
+            runOffLoop(() -> {
+                List<ByteBuffer> replies = new ArrayList<>();
+                try {
+                    BinaryProtocol.handle(commandHandler, profile, request, replies::add);
+                } catch (IOException e) {
+                    // The sink only collects
+                }
+                return () -> {
+                    for (ByteBuffer reply : replies) {
+                        send(reply);
+                    }
+                };
+            });
+            return;
+        }
+        if (phase == Phase.COMMAND) {
+            handleCommand(COMMANDS.get(payload));
+            return;
+        }
+        String frame = MessageHandler.decodePayload(payload);
+        switch (phase) {
+            case USERNAME -> handleUsername(frame);
+            case PASSWORD -> handlePassword(frame);
+            case NEW_USER_PASSWORD -> runOffLoop(() -> {
+                String passwordHash = commandHandler.hashPassword(frame);
+                return () -> newUserPasswordHashed(passwordHash);
+            });
+            case MESSAGE_DESTINATION -> {
+                messageDestination = frame;
+                phase = Phase.MESSAGE_BODY;
+            }
+            case MESSAGE_BODY -> {
+                String destination = messageDestination;
+                respond(profile -> commandHandler.message(profile, destination, frame).text);
+            }
+            case BROADCAST_BODY -> respond(profile -> commandHandler.broadcast(profile, frame).text);
+            case WHOELSESINCE_TIME -> respond(profile -> CommandHandler.listReply(commandHandler.whoelsesince(profile, frame)));
+            case BLOCK_USER -> respond(profile -> commandHandler.blockUser(profile, frame).text);
+            case UNBLOCK_USER -> respond(profile -> commandHandler.unblockUser(profile, frame).text);
+            default -> { }
+        }
+    }
+
+    private void promptUsername() throws IOException {
+        send("USERNAME");
+        phase = Phase.USERNAME;
+    }
+
+    private void handleUsername(String frame) throws IOException {
+        username = frame;
+        String response = commandHandler.checkUsername(username);
+        send(response);
+        if (response.startsWith(CommandHandler.MOVED)) {
+            closeAfterFlush();
+            return;
+        }
+        switch (response) {
+            case "ALREADY LOGGED IN", CommandHandler.INVALID_USERNAME -> promptUsername();
+            case "USER IS BLOCKED" -> closeAfterFlush();
+            case "NEW USER" -> phase = Phase.NEW_USER_PASSWORD;
+            default -> {
+                passwordAttempts = 0;
+                phase = Phase.PASSWORD;
+            }
+        }
+    }
+
+    private void handlePassword(String frame) {
+        String attemptedUsername = username;
+        runOffLoop(() -> {
+            CommandHandler.PasswordCheck check = commandHandler.checkPassword(attemptedUsername, frame);
+            return () -> passwordChecked(check);
+        });
+    }
+
+    private void passwordChecked(CommandHandler.PasswordCheck check) throws IOException {
+        if (check == CommandHandler.PasswordCheck.BUSY) {
+            send(CommandHandler.SERVER_BUSY);
+            closeAfterFlush();
+            return;
+        }
+        if (check == CommandHandler.PasswordCheck.VALID) {
+            finishLogin(commandHandler.login(username, this));
+            return;
+        }
+        passwordAttempts++;
+        if (passwordAttempts < CommandHandler.MAX_PASSWORD_ATTEMPT) {
+            send("Fail");
+            return;
+        }
+        commandHandler.blockLogin(username);
+        send("MAX ATTEMPT");
+        send(Integer.toString(commandHandler.getBlockDuration()));
+        closeAfterFlush();
+    }
+
+    private void newUserPasswordHashed(String passwordHash) throws IOException {
+        if (passwordHash == null) {
+            send(CommandHandler.SERVER_BUSY);
+            closeAfterFlush();
+            return;
+        }
+        finishLogin(commandHandler.createNewUser(username, passwordHash, this));
+    }
+
+    /**
+     * Finishes a login, or starts over from the username when another connection took the
+     * account first and the profile is null.
+     */
+    private void finishLogin(Profile profile) throws IOException {
+        if (profile == null) {
+            send("ALREADY LOGGED IN");
+            promptUsername();
+            return;
+        }
+        clientProfile = profile;
+        send("OK");
+        commandHandler.sendKeptMessages(clientProfile);
+        phase = Phase.COMMAND;
+    }
+
+    private void handleCommand(String command) throws IOException {
+        if (command == null) {
+            Log.debug("User entered an invalid command. Please try again");
+            return;
+        }
+        this.command = command;
+        this.commandStart = System.nanoTime();
+        switch (command) {
+            case "MESSAGE" -> phase = Phase.MESSAGE_DESTINATION;
+            case "BROADCAST" -> phase = Phase.BROADCAST_BODY;
+            case "WHOELSE" -> respond(profile -> CommandHandler.listReply(commandHandler.whoelse(profile)));
+            case "WHOELSESINCE" -> phase = Phase.WHOELSESINCE_TIME;
+            case "BLOCK" -> phase = Phase.BLOCK_USER;
+            case "UNBLOCK" -> phase = Phase.UNBLOCK_USER;
+            case "LOGOUT" -> close();
+            default -> Log.debug("User entered an invalid command. Please try again");
+        }
+    }
+
+    /**
+     * Runs a version 1 command and replies with its result.
+     */
+    private void respond(Function<Profile, String> command) throws IOException {
+        Profile profile = clientProfile;
+        if (!commandHandler.isClustered()) {
+            commandDone(command.apply(profile));
+            return;
+        }
+        runOffLoop(() -> {
+            String response = command.apply(profile);
+            return () -> commandDone(response);
+        });
+    }
+
+    /**
+     * For work that blocks: password checks, which wait for the auth pool, and in a cluster
+     * commands, which can wait on another node. Either would hold up every session on this event
+     * loop, so it runs on a virtual thread instead. Reading stops until its reply is sent, which
+     * keeps replies in the order the frames arrived.
+     */
+    private void runOffLoop(Supplier<Reply> command) {
+        commandRunning = true;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        Thread.ofVirtual().start(() -> {
+            Reply reply;
+            try {
+                reply = command.get();
+            } catch (RuntimeException e) {
+                Log.error("Command failed", e);
+                reply = null;
+            }
+            Reply result = reply;
+            eventLoop.execute(() -> commandFinished(result));
+        });
+    }
+
+    private void commandFinished(Reply reply) {
+        commandRunning = false;
+        if (phase == Phase.CLOSED) {
+            return;
+        }
+        try {
+            if (reply == null) {
+                close();
+                return;
+            }
+            reply.send();
+            if (phase != Phase.CLOSED) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                handleFrames();
+            }
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    private void commandDone(String response) throws IOException {
+        send(response);
+        phase = Phase.COMMAND;
+        commandHandler.getMetrics().commandDone(command, commandStart);
+    }
+
+    private void send(String msg) throws IOException {
+        send(ByteBuffer.wrap(msg.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    private void send(ByteBuffer payload) throws IOException {
+        queueWrite(MessageHandler.encodeFrame(payload, 0, compression));
+        flush();
+    }
+
+    private void queueWrite(ByteBuffer frame) {
+        commandHandler.getMetrics().frameOut(frame.remaining());
+        writeQueueBytes.addAndGet(frame.remaining());
+        writeQueue.add(frame);
+    }
+
+    /**
+     * May be called from any thread. The frame is written by the owning event loop.
+     */
+    @Override
+    public boolean push(String message) {
+        return push(new PushMessage(message));
+    }
+
+    @Override
+    public boolean push(PushMessage message) {
+        if (phase == Phase.CLOSED) {
+            return false;
+        }
+        switch (outboundQueue.offer(message.frame(compression))) {
+            case SPILL:
+                return commandHandler.spill(clientProfile, message.text());
+            case DISCONNECT:
+                eventLoop.execute(() -> closeConnection("slow"));
+                return false;
+            default:
+                eventLoop.schedulePushes(this);
+                return true;
+        }
+    }
+
+    @Override
+    public boolean pushBatch(List<String> messages) {
+        if (phase == Phase.CLOSED) {
+            return false;
+        }
+        if (protocolVersion < BinaryProtocol.VERSION) {
+            // One push per message, queued whatever the bound like a batch frame; spilling one
+            // would put it in the mailbox behind messages kept after it
+            for (String message : messages) {
+                if (!outboundQueue.add(new PushMessage(message).frame(compression))) {
+                    return false;
+                }
+            }
+            eventLoop.schedulePushes(this);
+            return true;
+        }
+        if (!outboundQueue.add(MessageHandler.encodeFrame(BinaryProtocol.batch(messages), MessageHandler.PUSH_FLAG | MessageHandler.BATCH_FLAG, compression))) {
+            return false;
+        }
+        eventLoop.schedulePushes(this);
+        return true;
+    }
+
+    @Override
+    public long backlogBytes() {
+        return outboundQueue.bytes() + writeQueueBytes.get();
+    }
+
+    /**
+     * Called by the owning event loop after push() scheduled this session.
+     */
+    public void flushPendingPushes() throws IOException {
+        if (!key.isValid()) {
+            return;
+        }
+        flush();
+    }
+
+    /**
+     * Pushes are only taken off the outbound queue once everything before them has been written,
+     * so a client that stops reading leaves them in the bounded queue rather than in writeQueue.
+     */
+    private void flush() throws IOException {
+        while (true) {
+            ByteBuffer head = writeQueue.peek();
+            if (head == null) {
+                head = outboundQueue.poll();
+                if (head == null) {
+                    break;
+                }
+                queueWrite(head);
+            }
+            channel.write(head);
+            if (head.hasRemaining()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+                return;
+            }
+            writeQueue.poll();
+            writeQueueBytes.addAndGet(-head.capacity());
+        }
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        if (closeAfterFlush) {
+            close();
+        }
+    }
+
+    private void closeAfterFlush() throws IOException {
+        closeAfterFlush = true;
+        phase = Phase.CLOSED;
+        if (writeQueue.isEmpty()) {
+            close();
+        }
+    }
+
+    private void closeConnection(String reason) {
+        if (phase != Phase.CLOSED) {
+            Log.info("Closing " + reason + " connection");
+            close();
+        }
+    }
+
+    public void close() {
+        if (!channel.isOpen()) {
+            return;
+        }
+        handshake.complete();
+        if (idleTimeout != null) {
+            idleTimeout.cancel();
+        }
+        phase = Phase.CLOSED;
+        outboundQueue.close();
+        commandHandler.logout(clientProfile);
+        clientProfile = null;
+        key.cancel();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.error("Closing connection failed", e);
+        }
+        commandHandler.getMetrics().connectionClosed();
+    }
+}
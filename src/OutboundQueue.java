@@ -0,0 +1,146 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Push frames waiting to be written to one connection. Any thread may offer a frame; the
+ * connection's own I/O side takes them off and writes them, so whoever sends a message never
+ * waits on the recipient's socket.
+ */
+public class OutboundQueue {
+    public enum Overflow {
+        // The frame was queued
+        NONE,
+        // The frame was queued after dropping the oldest one
+        DROPPED_OLDEST,
+        // The frame was not queued and should go to the recipient's mailbox
+        SPILL,
+        // The frame was not queued and the connection should be closed
+        DISCONNECT
+    }
+
+    private final OutboundQueues queues;
+    private final ArrayDeque<ByteBuffer> frames = new ArrayDeque<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private volatile long bytes = 0;
+    private boolean closed = false;
+
+    OutboundQueue(OutboundQueues queues) {
+        this.queues = queues;
+    }
+
+    public Overflow offer(ByteBuffer frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return Overflow.DISCONNECT;
+            }
+            if (frames.size() < queues.getCapacity()) {
+                enqueue(frame);
+                return Overflow.NONE;
+            }
+            switch (queues.getPolicy()) {
+                case DROP_OLDEST:
+                    bytes -= frames.poll().remaining();
+                    queues.depth.decrement();
+                    queues.dropped.increment();
+                    enqueue(frame);
+                    return Overflow.DROPPED_OLDEST;
+                case DISCONNECT:
+                    queues.disconnected.increment();
+                    return Overflow.DISCONNECT;
+                default:
+                    queues.spilled.increment();
+                    return Overflow.SPILL;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a frame whatever the bound. Used for mailbox batches, which are already held back
+     * until the queue is empty.
+     */
+    public boolean add(ByteBuffer frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return false;
+            }
+            enqueue(frame);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void enqueue(ByteBuffer frame) {
+        frames.add(frame);
+        bytes += frame.remaining();
+        queues.depth.increment();
+        queues.maxDepth.accumulate(frames.size());
+        notEmpty.signal();
+    }
+
+    /**
+     * Returns the next frame, or null when there is none.
+     */
+    public ByteBuffer poll() {
+        lock.lock();
+        try {
+            return dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for the next frame. Returns null once the queue has been closed.
+     */
+    public ByteBuffer take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            return closed ? null : dequeue();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ByteBuffer dequeue() {
+        ByteBuffer frame = frames.poll();
+        if (frame != null) {
+            bytes -= frame.remaining();
+            queues.depth.decrement();
+        }
+        return frame;
+    }
+
+    /**
+     * Bytes of the frames still waiting.
+     */
+    public long bytes() {
+        return bytes;
+    }
+
+    /**
+     * Discards whatever is still waiting and wakes up take.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            queues.depth.add(-frames.size());
+            frames.clear();
+            bytes = 0;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
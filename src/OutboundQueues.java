@@ -0,0 +1,88 @@
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Settings and counters shared by every connection's OutboundQueue. Each queue holds at most
+ * capacity pushes; what happens to a push that does not fit is the overflow policy, so a client
+ * that stops reading only ever costs its own queue.
+ *
+ * Set with -Doutbound.capacity and -Doutbound.overflow=spill|drop-oldest|disconnect.
+ */
+public class OutboundQueues {
+    private static final int DEFAULT_CAPACITY = 1024;
+
+    public enum OverflowPolicy {
+        // Drop the oldest waiting push to make room
+        DROP_OLDEST,
+        // Keep the push in the offline mailbox and send it once the queue has drained
+        SPILL_TO_MAILBOX,
+        // Close the connection; pushes still in its queue are lost, the rest are kept for the next login
+        DISCONNECT;
+
+        public static OverflowPolicy fromName(String name) {
+            return switch (name.toLowerCase(Locale.ROOT)) {
+                case "drop-oldest" -> DROP_OLDEST;
+                case "disconnect" -> DISCONNECT;
+                default -> SPILL_TO_MAILBOX;
+            };
+        }
+    }
+
+    private final int capacity;
+    private final OverflowPolicy policy;
+
+    final LongAdder depth = new LongAdder();
+    final LongAccumulator maxDepth = new LongAccumulator(Math::max, 0);
+    final LongAdder dropped = new LongAdder();
+    final LongAdder spilled = new LongAdder();
+    final LongAdder disconnected = new LongAdder();
+
+    public OutboundQueues(int capacity, OverflowPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    public static OutboundQueues fromSystemProperties() {
+        return new OutboundQueues(Integer.getInteger("outbound.capacity", DEFAULT_CAPACITY),
+                OverflowPolicy.fromName(System.getProperty("outbound.overflow", "spill")));
+    }
+
+    public OutboundQueue create() {
+        return new OutboundQueue(this);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    public long getDepth() {
+        return depth.sum();
+    }
+
+    public long getMaxDepth() {
+        return maxDepth.get();
+    }
+
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    public long getSpilled() {
+        return spilled.sum();
+    }
+
+    public long getDisconnected() {
+        return disconnected.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("policy=%s depth=%d maxDepth=%d dropped=%d spilled=%d disconnected=%d",
+                policy, getDepth(), getMaxDepth(), getDropped(), getSpilled(), getDisconnected());
+    }
+}
@@ -0,0 +1,79 @@
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Base64;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Salted PBKDF2 password hashes, stored as "pbkdf2-sha256$iterations$salt$hash" with the salt and
+ * hash in base64. Anything else is a plain password left by a store built before imports were
+ * hashed, which is replaced by a hash the first time its user logs in. The iteration count is set with
+ * -Dauth.iterations; hashes made with fewer are also replaced on login.
+ */
+public class PasswordHash {
+    private static final String PREFIX = "pbkdf2-sha256$";
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int DEFAULT_ITERATIONS = 100_000;
+    private static final int SALT_BYTES = 16;
+    private static final int HASH_BITS = 256;
+    private static final int ITERATIONS = Integer.getInteger("auth.iterations", DEFAULT_ITERATIONS);
+    private static final SecureRandom random = new SecureRandom();
+
+    public static String hash(String password) {
+        byte[] salt = new byte[SALT_BYTES];
+        random.nextBytes(salt);
+        Base64.Encoder base64 = Base64.getEncoder().withoutPadding();
+        return PREFIX + ITERATIONS + "$" + base64.encodeToString(salt) + "$" + base64.encodeToString(derive(password, salt, ITERATIONS));
+    }
+
+    /**
+     * False when the attempt does not match, and also when the stored hash is malformed, so a
+     * damaged record fails the login rather than the connection.
+     */
+    public static boolean verify(String stored, String attempt) {
+        if (!stored.startsWith(PREFIX)) {
+            return MessageDigest.isEqual(stored.getBytes(StandardCharsets.UTF_8), attempt.getBytes(StandardCharsets.UTF_8));
+        }
+        String[] parts = stored.substring(PREFIX.length()).split("\\$", -1);
+        if (parts.length != 3) {
+            return false;
+        }
+        try {
+            int iterations = Integer.parseInt(parts[0]);
+            Base64.Decoder base64 = Base64.getDecoder();
+            byte[] salt = base64.decode(parts[1]);
+            byte[] expected = base64.decode(parts[2]);
+            if (iterations < 1 || salt.length == 0 || expected.length == 0) {
+                return false;
+            }
+            return MessageDigest.isEqual(expected, derive(attempt, salt, iterations));
+        } catch (IllegalArgumentException e) {
+            // Thrown for a count that is not a number and for bad base64
+            return false;
+        }
+    }
+
+    /**
+     * True for a plain password or a hash made with fewer iterations than are set now.
+     */
+    public static boolean needsRehash(String stored) {
+        if (!stored.startsWith(PREFIX)) {
+            return true;
+        }
+        String iterations = stored.substring(PREFIX.length(), stored.indexOf('$', PREFIX.length()));
+        return Integer.parseInt(iterations) < ITERATIONS;
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, HASH_BITS);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
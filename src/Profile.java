@@ -1,49 +1,53 @@
 
-import java.io.IOException;
-import java.net.InetAddress;
-import java.net.Socket;
-import java.time.LocalDate;
-import java.time.LocalDateTime;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Map;
-
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A user as seen by the rest of the server. Their login state, connection, login times and block
+ * lists live in the registry's ProfileTable under the profile's id; only what is read by name is
+ * kept here.
+ */
 public class Profile {
     private final String username;
-    private final String password;
-    private boolean loggedIn;
-    private final ArrayList<String> awaitingMessagesInbound = new ArrayList<>();
-    private int listenerPort;
-    private final Map<String, Profile> blockedUsersList = new HashMap<>();
-    private LocalDateTime lastLoginDate;
-    private boolean isLoginBlocked = false; // TODO: block user and get timer
-    private LocalDateTime loginBlockedUntil = null;
-
-
-    public Profile(String username, String password) {
+    private final int id;
+    // A PasswordHash, or until their first login a plain password from a store built before imports were hashed
+    private volatile String passwordHash;
+    private final ProfileTable table;
+    private final Mailbox mailbox;
+
+    /**
+     * Made by UserRegistry, which gives out the id and its row in the table.
+     */
+    Profile(String username, int id, String passwordHash, ProfileTable table, Mailbox mailbox) {
         this.username = username;
-        this.password = password;
-        this.loggedIn = false;
+        this.id = id;
+        this.passwordHash = passwordHash;
+        this.table = table;
+        this.mailbox = mailbox;
     }
 
-    public void bindListenerPort(int listenerPort) {
-        this.listenerPort = listenerPort;
+    public PushChannel getPushChannel() {
+        return table.getPushChannel(id);
     }
 
-    public boolean isValidPassword(String passwordAttempt) {
-        return password.equals(passwordAttempt);
+    public String getPasswordHash() {
+        return passwordHash;
     }
 
-    public void blockUser(String username, Profile profile) {
-        blockedUsersList.put(username, profile);
+    public void setPasswordHash(String passwordHash) {
+        this.passwordHash = passwordHash;
     }
 
-    public void unblockUser(String username) {
-        blockedUsersList.remove(username);
+    public int getId() {
+        return id;
     }
 
-    public boolean isBlocking(String username) {
-        return blockedUsersList.containsKey(username);
+    public boolean isBlocking(int userId) {
+        return table.getBlocked(id).contains(userId);
+    }
+
+    public IntSet getBlocked() {
+        return table.getBlocked(id);
     }
 
     public String getUsername() {
@@ -51,76 +55,145 @@ public class Profile {
     }
 
     public boolean isLoggedIn() {
-        return loggedIn;
+        return table.hasState(id, ProfileTable.LOGGED_IN);
     }
 
-    public void login() {
-        this.loggedIn = true;
-        recieveAllAwaitingMessages();
-        lastLoginDate = LocalDateTime.now();
+    /**
+     * Marks the user online with deliveries going to the given channel. Returns false, changing
+     * nothing, when the user is already logged in on another connection. Messages kept while they
+     * were away are sent afterwards by a MailboxDrainer, which calls finishDrain once the mailbox
+     * is empty.
+     */
+    public boolean login(PushChannel pushChannel) {
+        if (!table.addState(id, ProfileTable.LOGGED_IN)) {
+            return false;
+        }
+        table.addState(id, ProfileTable.DRAINING);
+        table.setPushChannel(id, pushChannel);
+        return true;
     }
 
     public void logout() {
-        this.loggedIn = false;
-    }
-
-    public void recieveMessage(String message) {
-        if (isLoggedIn()) {
-            try {
-                Socket listenerSocket = establishConnection();
-                MessageHandler.sendMessageOverSocket(listenerSocket, message);
-                listenerSocket.close();
-                return;
-            } catch (IOException e) {
-                e.printStackTrace();
+        table.setPushChannel(id, null);
+        table.removeState(id, ProfileTable.LOGGED_IN | ProfileTable.DRAINING);
+    }
+
+    /**
+     * Returns true when the message was pushed to the user, false when it was kept for their next login.
+     */
+    public boolean recieveMessage(String message) {
+        return recieveMessage(new PushMessage(message));
+    }
+
+    /**
+     * Like recieveMessage(String), for a message that may be going to other users too.
+     */
+    public boolean recieveMessage(PushMessage message) {
+        PushChannel channel = table.getPushChannel(id);
+        ReentrantLock lock = table.deliveryLock(id);
+        lock.lock();
+        try {
+            if (table.getState(id) != ProfileTable.LOGGED_IN || channel == null) {
+                keepMessage(message.text());
+                return false;
             }
+        } finally {
+            lock.unlock();
+        }
+        if (channel.push(message)) {
+            return true;
         }
-        awaitingMessagesInbound.add(message);
+        keepMessage(message.text());
+        return false;
     }
 
-    private Socket establishConnection() throws IOException {
-        InetAddress ip = InetAddress.getByName("localhost");
-        return new Socket(ip, listenerPort);
+    /**
+     * Keeps a message for the user's next login without trying to push it.
+     */
+    public void keepMessage(String message) {
+        mailbox.append(username, message);
     }
 
+    public List<String> takeAwaitingMessages(int maxMessages, int maxBytes) {
+        return mailbox.drain(username, maxMessages, maxBytes);
+    }
 
-    private void recieveAllAwaitingMessages() {
-        if (awaitingMessagesInbound.isEmpty()) {
-            return;
+    /**
+     * Puts back messages taken by takeAwaitingMessages that could not be sent.
+     */
+    public void returnAwaitingMessages(List<String> messages) {
+        for (String message : messages) {
+            mailbox.append(username, message);
         }
-        for (String message : awaitingMessagesInbound) {
-            recieveMessage(message);
+    }
+
+    /**
+     * Keeps a message an online user's connection had no room for. Returns true when this
+     * switched the user to draining, in which case the caller starts the drain; messages that
+     * arrive meanwhile go to the mailbox behind this one.
+     */
+    public boolean spillMessage(String message) {
+        return spillMessages(List.of(message));
+    }
+
+    /**
+     * Like spillMessage, for several messages kept in the given order. A user who has logged out
+     * meanwhile just has them kept for their next login, and false is returned.
+     */
+    public boolean spillMessages(List<String> messages) {
+        ReentrantLock lock = table.deliveryLock(id);
+        lock.lock();
+        try {
+            boolean startDrain = isLoggedIn() && table.addState(id, ProfileTable.DRAINING);
+            for (String message : messages) {
+                keepMessage(message);
+            }
+            return startDrain;
+        } finally {
+            lock.unlock();
         }
     }
 
-    public boolean loggedInWithinTimeframe(LocalDateTime minBound) {
-        if (this.lastLoginDate == null) {
-            return false;
+    /**
+     * Lets new messages be pushed straight away again. Returns false, and stays draining, when a
+     * message was kept after the last batch was taken, so the drain goes on to send it before
+     * anything newer is pushed.
+     */
+    public boolean finishDrain() {
+        ReentrantLock lock = table.deliveryLock(id);
+        lock.lock();
+        try {
+            if (mailbox.pendingCount(username) > 0) {
+                return false;
+            }
+            table.removeState(id, ProfileTable.DRAINING);
+            return true;
+        } finally {
+            lock.unlock();
         }
-        return lastLoginDate.isAfter(minBound);
+    }
+
+    public long getLastLoginMillis() {
+        return table.getLastLoginMillis(id);
+    }
+
+    void setLastLoginMillis(long lastLoginMillis) {
+        table.setLastLoginMillis(id, lastLoginMillis);
     }
 
     public void blockLogin(int seconds) {
-        this.isLoginBlocked = true;
-        this.loginBlockedUntil = LocalDateTime.now().plusSeconds(seconds);
+        table.setLoginBlockedUntil(id, System.currentTimeMillis() + seconds * 1000L);
     }
 
-    private boolean isLoginStillBlocked() {
-        if (this.loginBlockedUntil == null) {
+    public boolean getIsLoginBlocked() {
+        long blockedUntil = table.getLoginBlockedUntil(id);
+        if (blockedUntil == 0) {
             return false;
         }
-        if (LocalDateTime.now().isAfter(this.loginBlockedUntil)) {
-            this.loginBlockedUntil = null;
-            this.isLoginBlocked = false;
+        if (System.currentTimeMillis() > blockedUntil) {
+            table.setLoginBlockedUntil(id, 0);
             return false;
         }
         return true;
     }
-
-    public boolean getIsLoginBlocked() {
-        if (!this.isLoginBlocked) {
-            return false;
-        }
-        return isLoginStillBlocked();
-    }
 }
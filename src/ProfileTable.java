@@ -0,0 +1,180 @@
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Per-user state stored as columns indexed by user id, in place of fields on every Profile. Each
+ * user costs a slot in a few primitive and reference arrays rather than an object with headers,
+ * boxed flags and dates, and a slot that was never used holds only zeros and nulls. Block lists
+ * stay null until the user blocks someone or is blocked.
+ *
+ * The columns are split into fixed size chunks that are added as ids are given out and never
+ * moved, so a write to a slot can not be lost to a copy made while the table grows.
+ */
+public class ProfileTable {
+    public static final int LOGGED_IN = 1;
+    // Set while kept messages are being sent, so new messages queue behind them in the mailbox
+    public static final int DRAINING = 2;
+
+    private static final int CHUNK_BITS = 12;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+    private static final int INITIAL_CHUNKS = 16;
+
+    private static final class Chunk {
+        final AtomicIntegerArray state = new AtomicIntegerArray(CHUNK_SIZE);
+        // Epoch millis; 0 before the first login and when logins are not blocked
+        final AtomicLongArray lastLoginMillis = new AtomicLongArray(CHUNK_SIZE);
+        final AtomicLongArray loginBlockedUntil = new AtomicLongArray(CHUNK_SIZE);
+        final AtomicReferenceArray<PushChannel> pushChannels = new AtomicReferenceArray<>(CHUNK_SIZE);
+        final AtomicReferenceArray<IntSet> blocked = new AtomicReferenceArray<>(CHUNK_SIZE);
+        final AtomicReferenceArray<IntSet> blockedBy = new AtomicReferenceArray<>(CHUNK_SIZE);
+        // Null for a name that only lives on another node
+        final AtomicReferenceArray<Profile> profiles = new AtomicReferenceArray<>(CHUNK_SIZE);
+    }
+
+    // Power of two; users share them by id rather than each carrying a lock
+    private static final int DELIVERY_LOCKS = 64;
+
+    private volatile Chunk[] chunks = new Chunk[INITIAL_CHUNKS];
+    private final ReentrantLock growLock = new ReentrantLock();
+    private final ReentrantLock[] deliveryLocks = new ReentrantLock[DELIVERY_LOCKS];
+
+    public ProfileTable() {
+        for (int i = 0; i < DELIVERY_LOCKS; i++) {
+            deliveryLocks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Makes room for the id. Called once for each id before it is handed out.
+     */
+    public void allocate(int id) {
+        growLock.lock();
+        try {
+            int index = id >>> CHUNK_BITS;
+            Chunk[] current = chunks;
+            if (index >= current.length) {
+                Chunk[] larger = new Chunk[Math.max(index + 1, current.length * 2)];
+                System.arraycopy(current, 0, larger, 0, current.length);
+                current = larger;
+            }
+            if (current[index] == null) {
+                current[index] = new Chunk();
+            }
+            chunks = current;
+        } finally {
+            growLock.unlock();
+        }
+    }
+
+    private Chunk chunk(int id) {
+        return chunks[id >>> CHUNK_BITS];
+    }
+
+    // ===== State flags =====
+
+    public boolean hasState(int id, int flags) {
+        return (chunk(id).state.get(id & CHUNK_MASK) & flags) == flags;
+    }
+
+    public int getState(int id) {
+        return chunk(id).state.get(id & CHUNK_MASK);
+    }
+
+    /**
+     * Sets the flag. Returns false, changing nothing, when it was already set.
+     */
+    public boolean addState(int id, int flag) {
+        AtomicIntegerArray state = chunk(id).state;
+        int slot = id & CHUNK_MASK;
+        while (true) {
+            int current = state.get(slot);
+            if ((current & flag) != 0) {
+                return false;
+            }
+            if (state.compareAndSet(slot, current, current | flag)) {
+                return true;
+            }
+        }
+    }
+
+    public void removeState(int id, int flags) {
+        AtomicIntegerArray state = chunk(id).state;
+        int slot = id & CHUNK_MASK;
+        int current;
+        do {
+            current = state.get(slot);
+        } while (!state.compareAndSet(slot, current, current & ~flags));
+    }
+
+    /**
+     * Held while a message is kept because the user is draining, and while a drain checks the
+     * mailbox is empty and clears DRAINING, so no message can be kept after that check.
+     */
+    public ReentrantLock deliveryLock(int id) {
+        return deliveryLocks[id & (DELIVERY_LOCKS - 1)];
+    }
+
+    // ===== Columns =====
+
+    public long getLastLoginMillis(int id) {
+        return chunk(id).lastLoginMillis.get(id & CHUNK_MASK);
+    }
+
+    public void setLastLoginMillis(int id, long millis) {
+        chunk(id).lastLoginMillis.set(id & CHUNK_MASK, millis);
+    }
+
+    public long getLoginBlockedUntil(int id) {
+        return chunk(id).loginBlockedUntil.get(id & CHUNK_MASK);
+    }
+
+    public void setLoginBlockedUntil(int id, long millis) {
+        chunk(id).loginBlockedUntil.set(id & CHUNK_MASK, millis);
+    }
+
+    public PushChannel getPushChannel(int id) {
+        return chunk(id).pushChannels.get(id & CHUNK_MASK);
+    }
+
+    public void setPushChannel(int id, PushChannel pushChannel) {
+        chunk(id).pushChannels.set(id & CHUNK_MASK, pushChannel);
+    }
+
+    /**
+     * The ids the user blocks.
+     */
+    public IntSet getBlocked(int id) {
+        IntSet blocked = chunk(id).blocked.get(id & CHUNK_MASK);
+        return blocked != null ? blocked : IntSet.EMPTY;
+    }
+
+    public void setBlocked(int id, IntSet blocked) {
+        chunk(id).blocked.set(id & CHUNK_MASK, blocked.size() == 0 ? null : blocked);
+    }
+
+    /**
+     * The ids of the users blocking this one.
+     */
+    public IntSet getBlockedBy(int id) {
+        IntSet blockedBy = chunk(id).blockedBy.get(id & CHUNK_MASK);
+        return blockedBy != null ? blockedBy : IntSet.EMPTY;
+    }
+
+    public void setBlockedBy(int id, IntSet blockedBy) {
+        chunk(id).blockedBy.set(id & CHUNK_MASK, blockedBy.size() == 0 ? null : blockedBy);
+    }
+
+    public Profile getProfile(int id) {
+        return chunk(id).profiles.get(id & CHUNK_MASK);
+    }
+
+    /**
+     * Returns false, changing nothing, when the id already has a profile.
+     */
+    public boolean setProfileIfAbsent(int id, Profile profile) {
+        return chunk(id).profiles.compareAndSet(id & CHUNK_MASK, null, profile);
+    }
+}
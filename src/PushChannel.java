@@ -0,0 +1,42 @@
+import java.util.List;
+
+/**
+ * Where a logged in Profile's deliveries are written. Implemented by the connection that
+ * owns the client's control socket, so pushes share it with command replies.
+ */
+public interface PushChannel {
+
+    /**
+     * Sends a push frame to the client. Returns false when the connection is gone and the
+     * message should be kept for later instead.
+     */
+    boolean push(String message);
+
+    /**
+     * Sends a message that may be going to other users too. Connections that can take its
+     * shared, already encoded frame do so instead of encoding the text again.
+     */
+    default boolean push(PushMessage message) {
+        return push(message.text());
+    }
+
+    /**
+     * Sends several messages at once. Connections whose client understands batch pushes send
+     * them as one frame; the rest fall back to one push per message.
+     */
+    default boolean pushBatch(List<String> messages) {
+        for (String message : messages) {
+            if (!push(message)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Bytes accepted by push but not yet written to the socket.
+     */
+    default long backlogBytes() {
+        return 0;
+    }
+}
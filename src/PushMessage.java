@@ -0,0 +1,51 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A message on its way to one or more users. Connections take its push frame rather than
+ * encoding the text themselves, so a broadcast is encoded, and compressed for the connections
+ * that asked for it, once however many users it goes to.
+ */
+public class PushMessage {
+    private final String text;
+    // Built on first use and shared; each connection is handed a duplicate
+    private volatile ByteBuffer frame;
+    private volatile ByteBuffer compressedFrame;
+
+    public PushMessage(String text) {
+        this.text = text;
+    }
+
+    public String text() {
+        return text;
+    }
+
+    /**
+     * The push frame, header included, ready to be written. With compress, a payload large
+     * enough to be worth it is deflated.
+     */
+    public ByteBuffer frame(boolean compress) {
+        ByteBuffer built = compress ? compressedFrame : frame;
+        if (built == null) {
+            built = build(compress);
+        }
+        return built.duplicate();
+    }
+
+    private synchronized ByteBuffer build(boolean compress) {
+        if (compress) {
+            if (compressedFrame == null) {
+                compressedFrame = MessageHandler.encodeFrame(payload(), MessageHandler.PUSH_FLAG, true);
+            }
+            return compressedFrame;
+        }
+        if (frame == null) {
+            frame = MessageHandler.encodeFrame(payload(), MessageHandler.PUSH_FLAG);
+        }
+        return frame;
+    }
+
+    private ByteBuffer payload() {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
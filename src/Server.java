@@ -1,13 +1,33 @@
 import java.io.*;
 import java.net.*;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
 
 public class Server {
+    private static final int DELIVERY_QUEUE_CAPACITY = 10000;
+    private static final int STATS_INTERVAL_SECONDS = 60;
+    private static final int MAILBOX_SHARDS = 16;
+    private static final int MAILBOX_SEGMENT_SIZE = 16 * 1024 * 1024;
+    // Overridden with -Dserver.backlog, -Dserver.acceptors, -Dhandshake.max.pending and -Dhandshake.timeout.ms
+    private static final int DEFAULT_BACKLOG = 1024;
+    private static final int DEFAULT_ACCEPTORS = 1;
+    private static final int DEFAULT_MAX_PENDING_HANDSHAKES = 1024;
+    private static final int DEFAULT_HANDSHAKE_TIMEOUT_MILLIS = 5000;
+    // Overridden with -Dauth.threads and -Dauth.queue
+    private static final int DEFAULT_AUTH_QUEUE = 256;
+    public static final String METRICS_PREFIX = "chat_";
+    private static final String METRICS_OBJECT_NAME = "SimpleTcpConnection:type=Metrics";
 
     public static void main(String[] args) throws IOException {
-        if (args.length != 3) {
-            System.out.println("===== Error usage: java server_port block_duration timeout =====");
+        if (args.length != 3 && args.length != 4) {
+            System.out.println("===== Error usage: java Server server_port block_duration timeout [blocking|virtual|nio] =====");
             return;
         }
         int serverPort;
@@ -15,58 +35,166 @@ public class Server {
         int blockDuration;
         try {
             serverPort = Integer.parseInt(args[0]);
-            timeout = Integer.parseInt(args[1]); timeout = timeout * 1000; // Turn into nanoseconds
             blockDuration = Integer.parseInt(args[1]);
+            timeout = Integer.parseInt(args[2]); timeout = timeout * 1000; // Turn into milliseconds
         } catch (NumberFormatException e ){
-            System.out.println("Error usage: java Server server_port block_duration timeout");
+            System.out.println("Error usage: java Server server_port block_duration timeout [blocking|virtual|nio]");
             return;
         }
+        String mode = args.length == 4 ? args[3] : "blocking";
 
-        ServerSocket serverSocket = new ServerSocket(serverPort);
-        System.out.println("===== Server is running =====");
+        Mailbox mailbox = createMailbox();
+        Cluster cluster = Cluster.fromSystemProperties();
+        UserRegistry userRegistry = loadCredentials(mailbox, cluster);
+        MailboxDrainer mailboxDrainer = new MailboxDrainer(Runtime.getRuntime().availableProcessors());
+        DeliveryExecutor deliveryExecutor = new DeliveryExecutor(Runtime.getRuntime().availableProcessors(), DELIVERY_QUEUE_CAPACITY, mailboxDrainer);
+        OutboundQueues outboundQueues = OutboundQueues.fromSystemProperties();
+        ServerMetrics metrics = new ServerMetrics(new Metrics(METRICS_PREFIX));
+        // Half the cores at most, so logins never take all of them from message traffic
+        AuthExecutor authExecutor = new AuthExecutor(Integer.getInteger("auth.threads", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)),
+                Integer.getInteger("auth.queue", DEFAULT_AUTH_QUEUE), metrics);
+        CommandHandler commandHandler = new CommandHandler(userRegistry, deliveryExecutor, mailboxDrainer, new IdleTimer(timeout),
+                outboundQueues, metrics, authExecutor, cluster, blockDuration);
+        HandshakeLimiter handshakeLimiter = new HandshakeLimiter(
+                Integer.getInteger("handshake.max.pending", DEFAULT_MAX_PENDING_HANDSHAKES),
+                Integer.getInteger("handshake.timeout.ms", DEFAULT_HANDSHAKE_TIMEOUT_MILLIS));
+        reportStats(deliveryExecutor, outboundQueues, mailboxDrainer, handshakeLimiter);
+        registerMetrics(metrics.getMetrics(), userRegistry, mailbox, deliveryExecutor, outboundQueues, mailboxDrainer, handshakeLimiter, authExecutor);
+        if (cluster != null) {
+            cluster.start(commandHandler, userRegistry);
+            metrics.getMetrics().counter("cluster_calls_total", "Requests sent to other nodes", cluster::getCalls);
+            metrics.getMetrics().counter("cluster_call_failures_total", "Requests to other nodes that failed or timed out", cluster::getFailures);
+        }
 
-        Map<String, Profile> userProfilesMap = loadCredentials();
+        int acceptors = Integer.getInteger("server.acceptors", DEFAULT_ACCEPTORS);
+        switch (mode) {
+            case "blocking" -> runBlocking(openServerSocket(serverPort), acceptors, handshakeLimiter, commandHandler, Thread.ofPlatform());
+            case "virtual" -> runBlocking(openServerSocket(serverPort), acceptors, handshakeLimiter, commandHandler, Thread.ofVirtual());
+            case "nio" -> new NioServer(openServerSocket(serverPort), acceptors, handshakeLimiter, commandHandler, Runtime.getRuntime().availableProcessors()).run();
+            default -> System.out.println("===== Unknown server mode: " + mode + " =====");
+        }
+    }
 
-        while (true) {
-            Socket clientSocket = null;
-            try {
-                System.out.println("===== Waiting for connection request from clients...=====");
-                clientSocket = serverSocket.accept();
-                System.out.println("===== New client socket=====");
+    private static ServerSocketChannel openServerSocket(int serverPort) throws IOException {
+        ServerSocketChannel serverSocket = ServerSocketChannel.open();
+        serverSocket.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        serverSocket.bind(new InetSocketAddress(serverPort), Integer.getInteger("server.backlog", DEFAULT_BACKLOG));
+        return serverSocket;
+    }
 
-                String response = MessageHandler.receiveMessageOverSocket(clientSocket);
-                assert(!response.equals("HELLO"));
+    /**
+     * Each acceptor thread only accepts and hands the connection to a new thread, which reads
+     * the HELLO itself under the handshake deadline.
+     */
+    private static void runBlocking(ServerSocketChannel serverSocket, int acceptors, HandshakeLimiter handshakeLimiter,
+                                    CommandHandler commandHandler, Thread.Builder threadBuilder) {
+        Log.info("===== Server is running with " + acceptors + " acceptors =====");
+        for (int i = 1; i < acceptors; i++) {
+            new Thread(() -> accept(serverSocket, handshakeLimiter, commandHandler, threadBuilder), "acceptor-" + i).start();
+        }
+        Thread.currentThread().setName("acceptor-0");
+        accept(serverSocket, handshakeLimiter, commandHandler, threadBuilder);
+    }
 
-                String clientListenerPort = MessageHandler.receiveMessageOverSocket(clientSocket);
-                Thread clientThread = new ClientHandler(clientSocket, Integer.parseInt(clientListenerPort), userProfilesMap, timeout, blockDuration);
-                clientThread.start();
+    private static void accept(ServerSocketChannel serverSocket, HandshakeLimiter handshakeLimiter,
+                               CommandHandler commandHandler, Thread.Builder threadBuilder) {
+        while (true) {
+            try {
+                Log.debug("===== Waiting for connection request from clients...=====");
+                SocketChannel clientSocket = serverSocket.accept();
+                Log.debug("===== New client socket=====");
 
-            } catch (Exception e) {
-                if (clientSocket != null) {
-                    clientSocket.close();
+                commandHandler.getMetrics().connectionAccepted();
+                HandshakeLimiter.Handshake handshake = handshakeLimiter.begin(clientSocket);
+                if (handshake != null) {
+                    threadBuilder.start(new ClientHandler(new MessageHandler(clientSocket, commandHandler.getMetrics()), handshake, commandHandler, threadBuilder));
                 }
-                e.printStackTrace();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                Log.error("Accepting a connection failed", e);
             }
         }
     }
 
-    private static Map<String,Profile> loadCredentials() throws IOException {
-        Map<String, Profile> userProfilesMap = new HashMap<>();
+    private static void reportStats(DeliveryExecutor deliveryExecutor, OutboundQueues outboundQueues,
+                                    MailboxDrainer mailboxDrainer, HandshakeLimiter handshakeLimiter) {
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "stats-reporter");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> {
+            Log.info("===== Delivery: " + deliveryExecutor + " =====");
+            Log.info("===== Outbound queues: " + outboundQueues + " =====");
+            Log.info("===== Mailbox drain: " + mailboxDrainer + " =====");
+            Log.info("===== Handshakes: " + handshakeLimiter + " =====");
+        }, STATS_INTERVAL_SECONDS, STATS_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Exposes the counters the components already keep next to the server's own instruments,
+     * over JMX and, when -Dmetrics.port is given, as text at http://127.0.0.1:port/metrics.
+     */
+    private static void registerMetrics(Metrics metrics, UserRegistry userRegistry, Mailbox mailbox, DeliveryExecutor deliveryExecutor,
+                                        OutboundQueues outboundQueues, MailboxDrainer mailboxDrainer, HandshakeLimiter handshakeLimiter,
+                                        AuthExecutor authExecutor) throws IOException {
+        metrics.gauge("sessions_active", "Users logged in", userRegistry::onlineCount);
+        metrics.gauge("users_registered", "Accounts known to the server", userRegistry::size);
+        metrics.gauge("mailbox_pending_messages", "Messages waiting in the offline mailbox", mailbox::totalPending);
+        metrics.counter("deliveries_queued_total", "Deliveries handed to a delivery lane", deliveryExecutor::getQueued);
+        metrics.counter("deliveries_pushed_total", "Deliveries pushed to an online recipient", deliveryExecutor::getDelivered);
+        metrics.counter("deliveries_stored_offline_total", "Deliveries kept in the mailbox because the recipient was away", deliveryExecutor::getStoredOffline);
+        metrics.counter("deliveries_rejected_total", "Deliveries kept in the mailbox because their lane was full", deliveryExecutor::getRejected);
+        metrics.counter("deliveries_failed_total", "Deliveries that threw", deliveryExecutor::getFailed);
+        metrics.gauge("delivery_queue_depth", "Deliveries waiting in the delivery lanes", deliveryExecutor::getQueueDepth);
+        metrics.gauge("outbound_queue_depth", "Pushes waiting in connections' outbound queues", outboundQueues::getDepth);
+        metrics.counter("outbound_dropped_total", "Pushes dropped by the drop-oldest policy", outboundQueues::getDropped);
+        metrics.counter("outbound_spilled_total", "Pushes sent to the mailbox by the spill policy", outboundQueues::getSpilled);
+        metrics.counter("outbound_disconnected_total", "Connections closed by the disconnect policy", outboundQueues::getDisconnected);
+        metrics.counter("mailbox_drains_total", "Mailboxes sent out after a login", mailboxDrainer::getDrains);
+        metrics.counter("mailbox_drained_messages_total", "Messages sent out of mailboxes", mailboxDrainer::getMessages);
+        metrics.counter("mailbox_drains_interrupted_total", "Drains stopped by a logout", mailboxDrainer::getInterrupted);
+        metrics.gauge("handshakes_pending", "Connections that have not sent their hello yet", handshakeLimiter::getPending);
+        metrics.counter("handshakes_rejected_total", "Connections closed because too many handshakes were pending", handshakeLimiter::getRejected);
+        metrics.counter("handshakes_timed_out_total", "Connections closed for not sending their hello in time", handshakeLimiter::getTimedOut);
+        metrics.gauge("auth_queue_depth", "Password checks and hashes waiting for an auth thread", authExecutor::getQueueDepth);
+        metrics.counter("auth_rejected_total", "Logins turned away because the auth queue was full", authExecutor::getRejected);
+        metrics.counter("log_dropped_total", "Log lines dropped because the log buffer was full", Log::getDropped);
+
         try {
-            File file = new File("credentials.txt");
-            BufferedReader br = new BufferedReader(new FileReader(file));
-            String line;
-            while ((line = br.readLine()) != null) {
-                String[] splitArray = line.split(" ");
-                Profile profile = new Profile(splitArray[0], splitArray[1]);
-                userProfilesMap.put(splitArray[0], profile);
-            }
-            assert(!userProfilesMap.isEmpty());
-        } catch (IOException e) {
-            e.printStackTrace();
-            return new HashMap<>();
+            metrics.registerMBean(METRICS_OBJECT_NAME);
+        } catch (JMException e) {
+            Log.error("Registering the metrics MBean failed", e);
+        }
+        Integer port = Integer.getInteger("metrics.port");
+        if (port != null) {
+            metrics.serveText(port);
+            Log.info("===== Metrics at http://127.0.0.1:" + port + "/metrics =====");
         }
-        return userProfilesMap;
+    }
+
+    /**
+     * Offline messages go to a memory mapped log under ./mailbox unless -Dmailbox=memory is given.
+     */
+    private static Mailbox createMailbox() throws IOException {
+        if ("memory".equals(System.getProperty("mailbox"))) {
+            return new InMemoryMailbox();
+        }
+        return new MappedMailbox(Path.of(System.getProperty("mailbox.dir", "mailbox")), MAILBOX_SHARDS, MAILBOX_SEGMENT_SIZE);
+    }
+
+    /**
+     * Users are kept in a memory mapped store, built from credentials.txt the first time the
+     * server starts and holding every user registered since. In a cluster each node has its own
+     * store with only the users that live on it.
+     */
+    private static UserRegistry loadCredentials(Mailbox mailbox, Cluster cluster) throws IOException {
+        String defaultStore = cluster == null ? "credentials.db" : "credentials-" + cluster.getSelf().clientPort() + ".db";
+        CredentialStore store = CredentialStore.open(Path.of(System.getProperty("credentials.db", defaultStore)), Path.of("credentials.txt"),
+                username -> cluster == null || cluster.isLocal(username));
+        Log.info("===== " + store.size() + " users registered =====");
+        return new UserRegistry(store, mailbox);
     }
 
 }
\ No newline at end of file
@@ -0,0 +1,84 @@
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The instruments the connection and command code records into. Created once at startup and
+ * shared by every connection, so recording is an adder increment or a histogram record with no
+ * lookups other than the command name.
+ */
+public class ServerMetrics {
+    public static final String[] COMMANDS = {"MESSAGE", "BROADCAST", "WHOELSE", "WHOELSESINCE", "BLOCK", "UNBLOCK"};
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final Metrics metrics;
+    private final LongAdder accepted;
+    private final LongAdder open = new LongAdder();
+    private final Map<String, Histogram> commandLatency = new HashMap<>();
+    private final Histogram frameBytesIn;
+    private final Histogram frameBytesOut;
+    private final Histogram fanOut;
+    private final Histogram authWait;
+    private final Histogram authWork;
+
+    public ServerMetrics(Metrics metrics) {
+        this.metrics = metrics;
+        this.accepted = metrics.counter("connections_accepted_total", "Connections accepted");
+        metrics.gauge("connections_open", "Connections accepted and not yet closed", open::sum);
+        for (String command : COMMANDS) {
+            commandLatency.put(command, metrics.histogram("command_seconds", "Time from reading a command to its reply being sent",
+                    NANOS_PER_SECOND, "command", command.toLowerCase()));
+        }
+        this.frameBytesIn = metrics.histogram("frame_in_bytes", "Size of frames read, header included", 1);
+        this.frameBytesOut = metrics.histogram("frame_out_bytes", "Size of frames written, header included", 1);
+        this.fanOut = metrics.histogram("broadcast_recipients", "Recipients of each broadcast", 1);
+        this.authWait = metrics.histogram("auth_queue_wait_seconds", "Time a password check or hash waited for an auth thread", NANOS_PER_SECOND);
+        this.authWork = metrics.histogram("auth_verify_seconds", "Time spent checking or hashing a password", NANOS_PER_SECOND);
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public void connectionAccepted() {
+        accepted.increment();
+    }
+
+    public void connectionOpened() {
+        open.increment();
+    }
+
+    public void connectionClosed() {
+        open.decrement();
+    }
+
+    /**
+     * Records a command's latency. Unknown commands are not recorded.
+     */
+    public void commandDone(String command, long startNanos) {
+        Histogram histogram = commandLatency.get(command);
+        if (histogram != null) {
+            histogram.recordNanosSince(startNanos);
+        }
+    }
+
+    public void frameIn(int bytes) {
+        frameBytesIn.record(bytes);
+    }
+
+    public void frameOut(int bytes) {
+        frameBytesOut.record(bytes);
+    }
+
+    public void fanOut(int recipients) {
+        fanOut.record(recipients);
+    }
+
+    public void authQueued(long waitNanos) {
+        authWait.record(waitNanos);
+    }
+
+    public void authDone(long startNanos) {
+        authWork.recordNanosSince(startNanos);
+    }
+}
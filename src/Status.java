@@ -0,0 +1,44 @@
+/**
+ * Outcome of a command. The text is what version 1 of the protocol sends back, the code is the
+ * single byte version 2 sends instead.
+ */
+public enum Status {
+    OK(0, "OK"),
+    USER_NOT_FOUND(1, "USER NOT FOUND"),
+    DESTINATION_USER_IS_SELF(2, "DESTINATION USER IS SELF"),
+    BLOCKED(3, "BLOCKED"),
+    USER_IS_ALREADY_BLOCKED(4, "USER IS ALREADY BLOCKED"),
+    USER_IS_NOT_BLOCKED(5, "USER IS NOT BOCKED"),
+    MESSAGE_ONLY_SENT_TO_SOME_USERS(6, "MESSAGE ONLY SENT TO SOME USERS"),
+    MESSAGE_NOT_SENT(7, "MESSAGE NOT SENT"),
+    NONE(8, "NONE"),
+    INVALID_COMMAND(9, "INVALID COMMAND"),
+    // Version 2 only: this reply is one chunk of a user list and more chunks follow
+    MORE(10, "MORE");
+
+    private static final Status[] BY_CODE = values();
+
+    public final byte code;
+    public final String text;
+
+    Status(int code, String text) {
+        this.code = (byte) code;
+        this.text = text;
+    }
+
+    public static Status fromCode(byte code) {
+        if (code < 0 || code >= BY_CODE.length) {
+            return INVALID_COMMAND;
+        }
+        return BY_CODE[code];
+    }
+
+    public static Status fromText(String text) {
+        for (Status status : BY_CODE) {
+            if (status.text.equals(text)) {
+                return status;
+            }
+        }
+        return INVALID_COMMAND;
+    }
+}
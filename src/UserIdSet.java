@@ -0,0 +1,125 @@
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntConsumer;
+
+/**
+ * A bitmap of user ids, one bit per id ever given out. Adding and removing lock, since the bitmap
+ * grows with the ids; testing and walking it do not, and see each change to a word whole.
+ */
+public class UserIdSet {
+    private static final int INITIAL_WORDS = 16;
+
+    private volatile AtomicLongArray words = new AtomicLongArray(INITIAL_WORDS);
+    private volatile int size = 0;
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public boolean add(int id) {
+        lock.lock();
+        try {
+            int word = id >>> 6;
+            if (word >= words.length()) {
+                AtomicLongArray larger = new AtomicLongArray(Math.max(word + 1, words.length() * 2));
+                for (int i = 0; i < words.length(); i++) {
+                    larger.set(i, words.get(i));
+                }
+                words = larger;
+            }
+            long bits = words.get(word);
+            if ((bits & (1L << id)) != 0) {
+                return false;
+            }
+            words.set(word, bits | (1L << id));
+            size++;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean remove(int id) {
+        lock.lock();
+        try {
+            int word = id >>> 6;
+            if (word >= words.length()) {
+                return false;
+            }
+            long bits = words.get(word);
+            if ((bits & (1L << id)) == 0) {
+                return false;
+            }
+            words.set(word, bits & ~(1L << id));
+            size--;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean contains(int id) {
+        AtomicLongArray current = words;
+        int word = id >>> 6;
+        return word < current.length() && (current.get(word) & (1L << id)) != 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Calls the action with every member except the given id and the members of the given set,
+     * in order. The exclusions are cleared from each word before its bits are walked, so a word
+     * with no one left in it costs one load and a few masks.
+     */
+    public void forEachExcept(int excludedId, IntSet excluded, IntConsumer action) {
+        AtomicLongArray current = words;
+        int next = 0;
+        for (int word = 0; word < current.length(); word++) {
+            long bits = current.get(word);
+            if (excludedId >>> 6 == word) {
+                bits &= ~(1L << excludedId);
+            }
+            while (next < excluded.size() && excluded.get(next) >>> 6 < word) {
+                next++;
+            }
+            while (next < excluded.size() && excluded.get(next) >>> 6 == word) {
+                bits &= ~(1L << excluded.get(next));
+                next++;
+            }
+            while (bits != 0) {
+                action.accept((word << 6) + Long.numberOfTrailingZeros(bits));
+                bits &= bits - 1;
+            }
+        }
+    }
+
+    public PrimitiveIterator.OfInt iterator() {
+        AtomicLongArray current = words;
+        return new PrimitiveIterator.OfInt() {
+            private int word = -1;
+            private long bits = 0;
+
+            @Override
+            public boolean hasNext() {
+                while (bits == 0) {
+                    if (++word >= current.length()) {
+                        return false;
+                    }
+                    bits = current.get(word);
+                }
+                return true;
+            }
+
+            @Override
+            public int nextInt() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                int id = (word << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                return id;
+            }
+        };
+    }
+}
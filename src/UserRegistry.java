@@ -0,0 +1,298 @@
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+/**
+ * Every known user by name. Lookups, online checks and block checks never lock, so logins and
+ * message routing on different connections do not wait on each other. Registering a name and
+ * logging in are each a single atomic step: when two connections race for the same new name or
+ * the same account, exactly one of them wins. The writes that do lock take ReentrantLocks rather
+ * than monitors, so a virtual thread waiting on one unmounts instead of pinning its carrier.
+ *
+ * Alongside the users it keeps the set of those online and an index of everyone's latest login
+ * ordered by time, both updated on login and logout, so whoelse costs the number of users online
+ * and whoelsesince the number who logged in within the window rather than every registered user.
+ *
+ * With a CredentialStore behind it, a profile is only created the first time its user is looked
+ * up, and new users are appended to the store.
+ *
+ * Every username it sees, including users of other nodes that are blocked here, is given a small
+ * dense id the first time. The online users are a bitmap of ids, and for each id it keeps the
+ * sorted ids of the users blocking it, so the recipients of a broadcast are one pass over the
+ * bitmap with the sender and those blocking them masked out.
+ *
+ * Everything about a user except their name and password is kept by id in a ProfileTable, which
+ * also holds the one Profile for each id, so the name to id map is the only per-name index.
+ */
+public class UserRegistry {
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+    private final ProfileTable table = new ProfileTable();
+    private final ReentrantLock idLock = new ReentrantLock();
+    private int nextId = 0;
+    // Held while a new user is registered; logins of existing users never take it
+    private final ReentrantLock registration = new ReentrantLock();
+    private int registered = 0;
+    private final UserIdSet onlineUsers = new UserIdSet();
+    // Held while a user's block list and the other user's blocked-by list change together
+    private final ReentrantLock blockLock = new ReentrantLock();
+    private final ConcurrentSkipListMap<LoginTime, Profile> loginTimes = new ConcurrentSkipListMap<>(
+            Comparator.comparingLong(LoginTime::millis).thenComparing(LoginTime::username));
+
+    private final CredentialStore store;
+    private final Mailbox mailbox;
+
+    private record LoginTime(long millis, String username) {
+    }
+
+    /**
+     * A registry of only the users registered after it was created.
+     */
+    public UserRegistry(Mailbox mailbox) {
+        this(null, mailbox);
+    }
+
+    public UserRegistry(CredentialStore store, Mailbox mailbox) {
+        this.store = store;
+        this.mailbox = mailbox;
+    }
+
+    public Profile get(String username) {
+        int id = findId(username);
+        Profile profile = id < 0 ? null : table.getProfile(id);
+        if (profile != null || store == null) {
+            return profile;
+        }
+        String passwordHash = store.passwordHash(username);
+        if (passwordHash == null) {
+            return null;
+        }
+        id = idOf(username);
+        profile = new Profile(username, id, passwordHash, table, mailbox);
+        if (!table.setProfileIfAbsent(id, profile)) {
+            return table.getProfile(id);
+        }
+        return profile;
+    }
+
+    /**
+     * The username's id, given out now if it has none yet. New ids are given out under idLock
+     * rather than inside computeIfAbsent, which would hold the map's bin monitor while waiting on it.
+     */
+    public int idOf(String username) {
+        Integer id = ids.get(username);
+        if (id != null) {
+            return id;
+        }
+        idLock.lock();
+        try {
+            id = ids.get(username);
+            if (id != null) {
+                return id;
+            }
+            int newId = nextId;
+            table.allocate(newId);
+            nextId++;
+            ids.put(username, newId);
+            return newId;
+        } finally {
+            idLock.unlock();
+        }
+    }
+
+    /**
+     * The username's id, or -1 when it has none, in which case nobody here blocks it.
+     */
+    public int findId(String username) {
+        return ids.getOrDefault(username, -1);
+    }
+
+    public boolean contains(String username) {
+        int id = findId(username);
+        return (id >= 0 && table.getProfile(id) != null) || (store != null && store.contains(username));
+    }
+
+    /**
+     * A live view of the users logged in right now, in id order.
+     */
+    public Iterable<Profile> onlineUsers() {
+        return () -> new Iterator<>() {
+            private final PrimitiveIterator.OfInt online = onlineUsers.iterator();
+            private Profile next;
+
+            @Override
+            public boolean hasNext() {
+                while (next == null && online.hasNext()) {
+                    next = table.getProfile(online.nextInt());
+                }
+                return next != null;
+            }
+
+            @Override
+            public Profile next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Profile profile = next;
+                next = null;
+                return profile;
+            }
+        };
+    }
+
+    public int onlineCount() {
+        return onlineUsers.size();
+    }
+
+    /**
+     * Calls the action with every user online except the sender and those blocking them.
+     */
+    public void forEachBroadcastRecipient(String sender, Consumer<Profile> action) {
+        int senderId = findId(sender);
+        IntSet blockers = senderId < 0 ? IntSet.EMPTY : table.getBlockedBy(senderId);
+        onlineUsers.forEachExcept(senderId, blockers, id -> {
+            Profile profile = table.getProfile(id);
+            if (profile != null) {
+                action.accept(profile);
+            }
+        });
+    }
+
+    // ===== Blocking =====
+
+    public boolean isBlocking(Profile profile, String username) {
+        int id = findId(username);
+        return id >= 0 && profile.isBlocking(id);
+    }
+
+    /**
+     * Returns false when the profile already blocks the user. The user may live on another node.
+     */
+    public boolean block(Profile profile, String username) {
+        // Outside the lock: a new id is given out under idLock
+        int id = idOf(username);
+        blockLock.lock();
+        try {
+            if (profile.isBlocking(id)) {
+                return false;
+            }
+            table.setBlocked(profile.getId(), profile.getBlocked().with(id));
+            table.setBlockedBy(id, table.getBlockedBy(id).with(profile.getId()));
+            return true;
+        } finally {
+            blockLock.unlock();
+        }
+    }
+
+    /**
+     * Returns false when the profile was not blocking the user.
+     */
+    public boolean unblock(Profile profile, String username) {
+        int id = findId(username);
+        blockLock.lock();
+        try {
+            if (id < 0 || !profile.isBlocking(id)) {
+                return false;
+            }
+            table.setBlocked(profile.getId(), profile.getBlocked().without(id));
+            table.setBlockedBy(id, table.getBlockedBy(id).without(profile.getId()));
+            return true;
+        } finally {
+            blockLock.unlock();
+        }
+    }
+
+    /**
+     * A live view of the users whose latest login was after the given epoch millis, oldest first.
+     */
+    public Collection<Profile> loggedInSince(long millis) {
+        return loginTimes.tailMap(new LoginTime(millis, ""), false).values();
+    }
+
+    /**
+     * Every profile loaded or registered is also in the store, when there is one.
+     */
+    public int size() {
+        if (store != null) {
+            return store.size();
+        }
+        registration.lock();
+        try {
+            return registered;
+        } finally {
+            registration.unlock();
+        }
+    }
+
+    public void changePasswordHash(Profile profile, String passwordHash) {
+        profile.setPasswordHash(passwordHash);
+        if (store != null) {
+            store.update(profile.getUsername(), passwordHash);
+        }
+    }
+
+    /**
+     * Logs an existing user in. Returns null when there is no such user or they are already
+     * logged in on another connection.
+     */
+    public Profile login(String username, PushChannel pushChannel) {
+        Profile profile = get(username);
+        if (profile == null || !profile.login(pushChannel)) {
+            return null;
+        }
+        loggedIn(profile);
+        return profile;
+    }
+
+    /**
+     * Registers a new user and logs them in. Returns null when the username was taken first.
+     */
+    public Profile registerAndLogin(String username, String passwordHash, PushChannel pushChannel) {
+        Profile profile;
+        registration.lock();
+        try {
+            if (contains(username)) {
+                return null;
+            }
+            int id = idOf(username);
+            profile = new Profile(username, id, passwordHash, table, mailbox);
+            // Logged in before it is visible, so nobody else can log in to it first. The row is
+            // unused: only a visible profile can be logged in to, and none has been for this id
+            profile.login(pushChannel);
+            table.setProfileIfAbsent(id, profile);
+            registered++;
+        } finally {
+            registration.unlock();
+        }
+        if (store != null) {
+            store.append(username, passwordHash);
+        }
+        loggedIn(profile);
+        return profile;
+    }
+
+    /**
+     * Only the connection that won the login gets here, and the next login has to wait for its
+     * logout, so the previous login time read below is always the one in the index.
+     */
+    private void loggedIn(Profile profile) {
+        long previous = profile.getLastLoginMillis();
+        long now = System.currentTimeMillis();
+        if (previous != 0) {
+            loginTimes.remove(new LoginTime(previous, profile.getUsername()));
+        }
+        profile.setLastLoginMillis(now);
+        loginTimes.put(new LoginTime(now, profile.getUsername()), profile);
+        onlineUsers.add(profile.getId());
+    }
+
+    public void logout(Profile profile) {
+        onlineUsers.remove(profile.getId());
+        profile.logout();
+    }
+}